@@ -57,6 +57,9 @@ public final class Mirage extends JavaPlugin {
 
     @Override
     public void onDisable() {
+        if(ChunkRenderingSystem.getInstance() != null)
+            ChunkRenderingSystem.getInstance().shutdown();
+
         //Speeds up the server shutdown a lot!
         //Bukkit will automatically save the worlds by default, but we obviously don't want that!
         for(MirageWorld world : WorldsDirectoryManager.getInstance().getWorlds()) {
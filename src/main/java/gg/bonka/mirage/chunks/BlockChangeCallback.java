@@ -0,0 +1,12 @@
+package gg.bonka.mirage.chunks;
+
+import org.bukkit.World;
+
+/**
+ * Called by the {@link BlockChangeTracker} for every block that is (about to be) changed.
+ * <br><br>
+ * <b>Block events are called before the change is applied to the world!</b>
+ */
+public interface BlockChangeCallback {
+    void callback(World world, int x, int y, int z);
+}
@@ -0,0 +1,178 @@
+package gg.bonka.mirage.chunks;
+
+import gg.bonka.mirage.Mirage;
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.block.BlockState;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.block.*;
+import org.bukkit.event.entity.EntityChangeBlockEvent;
+import org.bukkit.event.entity.EntityExplodeEvent;
+import org.bukkit.event.world.StructureGrowEvent;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Listens to every Bukkit event that changes blocks, and forwards the changed positions to the registered callbacks.
+ * This is used by the rendering system to keep the data it derives from worlds up to date.
+ */
+public class BlockChangeTracker implements Listener {
+
+    private final List<BlockChangeCallback> callbacks = new ArrayList<>();
+    private final List<ChunkChangeCallback> chunkCallbacks = new ArrayList<>();
+
+    public BlockChangeTracker() {
+        Bukkit.getPluginManager().registerEvents(this, Mirage.getInstance());
+    }
+
+    /**
+     * Registers a callback that will be called for every changed block.
+     *
+     * @param callback the callback to register
+     */
+    public void addCallback(BlockChangeCallback callback) {
+        callbacks.add(callback);
+    }
+
+    /**
+     * Registers a callback that will be called for every chunk that changed as a whole.
+     *
+     * @param callback the callback to register
+     */
+    public void addChunkCallback(ChunkChangeCallback callback) {
+        chunkCallbacks.add(callback);
+    }
+
+    /**
+     * Reports a block change that didn't go through any Bukkit event, like changes made by rollbacks or world editors.
+     *
+     * @param world the world the block is in
+     * @param x the x-coordinate of the block
+     * @param y the y-coordinate of the block
+     * @param z the z-coordinate of the block
+     */
+    public void notifyChange(World world, int x, int y, int z) {
+        registerChange(world, x, y, z);
+    }
+
+    /**
+     * Reports a chunk whose blocks were replaced as a whole, without reporting every block.
+     * Unlike block changes, this is only used to invalidate what was derived from the chunk, it isn't forwarded to the players.
+     *
+     * @param world the world the chunk is in
+     * @param chunkX the x-coordinate of the chunk
+     * @param chunkZ the z-coordinate of the chunk
+     */
+    public void notifyChunkChange(World world, int chunkX, int chunkZ) {
+        for(ChunkChangeCallback callback : chunkCallbacks)
+            callback.callback(world, chunkX, chunkZ);
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockPhysics(BlockPhysicsEvent event) {
+        registerChange(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockPlace(BlockPlaceEvent event) {
+        registerChange(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockBreak(BlockBreakEvent event) {
+        registerChange(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockBurn(BlockBurnEvent event) {
+        registerChange(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockFade(BlockFadeEvent event) {
+        registerChange(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockForm(BlockFormEvent event) {
+        registerChange(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockGrow(BlockGrowEvent event) {
+        registerChange(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onLeavesDecay(LeavesDecayEvent event) {
+        registerChange(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockFromTo(BlockFromToEvent event) {
+        registerChange(event.getToBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onSignChange(SignChangeEvent event) {
+        registerChange(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntityChangeBlock(EntityChangeBlockEvent event) {
+        registerChange(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockExplode(BlockExplodeEvent event) {
+        registerChange(event.getBlock());
+        event.blockList().forEach(this::registerChange);
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntityExplode(EntityExplodeEvent event) {
+        event.blockList().forEach(this::registerChange);
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPistonExtend(BlockPistonExtendEvent event) {
+        registerPistonChange(event.getBlock(), event.getBlocks(), event.getDirection());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPistonRetract(BlockPistonRetractEvent event) {
+        registerPistonChange(event.getBlock(), event.getBlocks(), event.getDirection());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onStructureGrow(StructureGrowEvent event) {
+        World world = event.getWorld();
+
+        for(BlockState state : event.getBlocks())
+            registerChange(world, state.getX(), state.getY(), state.getZ());
+    }
+
+    private void registerPistonChange(Block piston, List<Block> movedBlocks, BlockFace direction) {
+        registerChange(piston);
+        registerChange(piston.getRelative(direction));
+
+        for(Block block : movedBlocks) {
+            registerChange(block);
+            registerChange(block.getRelative(direction));
+        }
+    }
+
+    private void registerChange(Block block) {
+        registerChange(block.getWorld(), block.getX(), block.getY(), block.getZ());
+    }
+
+    private void registerChange(World world, int x, int y, int z) {
+        for(BlockChangeCallback callback : callbacks)
+            callback.callback(world, x, y, z);
+    }
+}
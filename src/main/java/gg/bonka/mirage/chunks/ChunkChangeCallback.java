@@ -0,0 +1,10 @@
+package gg.bonka.mirage.chunks;
+
+import org.bukkit.World;
+
+/**
+ * Called by the {@link BlockChangeTracker} for every chunk whose blocks were replaced as a whole.
+ */
+public interface ChunkChangeCallback {
+    void callback(World world, int chunkX, int chunkZ);
+}
@@ -0,0 +1,214 @@
+package gg.bonka.mirage.chunks;
+
+import gg.bonka.mirage.chunks.cache.ChunkPacketCache;
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.scheduler.BukkitRunnable;
+import org.bukkit.util.Vector;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Loads and encodes the visualizer chunks that fast moving players are about to receive, before the chunk packets are sent.
+ * <br><br>
+ * The movement of every mapped player is measured from their position, which also covers elytra and minecarts,
+ * and is slightly bent towards their heading.
+ * The chunks that come into view at the predicted position are loaded asynchronously and encoded once they're loaded,
+ * so the {@link ChunkPacketCache} already holds them once the player gets there.
+ * The amount of prefetched chunks is bounded by a budget per tick for all players together.
+ * <br><br>
+ * Chunks are encoded on the main thread, since the encoding reads the live chunk. This class is only used on the main thread.
+ */
+public class ChunkPrefetcher extends BukkitRunnable {
+
+    // The prefetcher runs every few ticks, the budget of the skipped ticks is used at once
+    public static final int PERIOD = 5;
+
+    // Blocks per tick, slower players have plenty of time to receive their chunks on demand
+    private static final double MIN_SPEED = 0.3;
+
+    // How much the view direction counts in the predicted movement, compared to the measured velocity
+    private static final double HEADING_WEIGHT = 0.25;
+
+    private final Map<UUID, ChunkRenderSettings> playerRenderSettings;
+    private final ChunkPacketCache chunkPacketCache;
+    private final LayerCompositor layerCompositor;
+
+    private final int lookaheadTicks;
+    private final int chunksPerTick;
+
+    private final Map<UUID, Motion> motions = new HashMap<>();
+    private final Set<PrefetchKey> inFlight = new HashSet<>();
+
+    private final LongAdder prefetchedChunks = new LongAdder();
+
+    /**
+     * @param playerRenderSettings the render settings of all players
+     * @param chunkPacketCache the cache to encode the prefetched chunks into
+     * @param layerCompositor the compositor that loads the chunks of composite worlds
+     * @param lookaheadTicks the amount of ticks the movement of players is predicted ahead
+     * @param chunksPerTick the maximum amount of chunks prefetched per tick
+     */
+    ChunkPrefetcher(Map<UUID, ChunkRenderSettings> playerRenderSettings, ChunkPacketCache chunkPacketCache, LayerCompositor layerCompositor, int lookaheadTicks, int chunksPerTick) {
+        this.playerRenderSettings = playerRenderSettings;
+        this.chunkPacketCache = chunkPacketCache;
+        this.layerCompositor = layerCompositor;
+        this.lookaheadTicks = lookaheadTicks;
+        this.chunksPerTick = chunksPerTick;
+    }
+
+    @Override
+    public void run() {
+        motions.keySet().removeIf(uuid -> !playerRenderSettings.containsKey(uuid));
+
+        int budget = chunksPerTick * PERIOD;
+
+        for(Map.Entry<UUID, ChunkRenderSettings> entry : playerRenderSettings.entrySet()) {
+            Player player = Bukkit.getPlayer(entry.getKey());
+
+            if(player == null || budget <= 0)
+                continue;
+
+            budget -= prefetch(player, entry.getValue(), budget);
+        }
+    }
+
+    /**
+     * Prefetches the chunks the player is about to receive.
+     *
+     * @return the amount of chunks that started prefetching
+     */
+    private int prefetch(Player player, ChunkRenderSettings renderSettings, int budget) {
+        Location location = player.getLocation();
+        World world = location.getWorld();
+        Motion motion = motions.get(player.getUniqueId());
+
+        if(motion == null || motion.world != world) {
+            motions.put(player.getUniqueId(), new Motion(world, location.getX(), location.getZ()));
+            return 0;
+        }
+
+        motion.update(location.getX(), location.getZ());
+
+        if(Math.hypot(motion.velocityX, motion.velocityZ) < MIN_SPEED)
+            return 0;
+
+        // Elytra flyers head where they look, so the heading bends the prediction a little
+        Vector heading = location.getDirection().setY(0);
+        double speed = Math.hypot(motion.velocityX, motion.velocityZ);
+
+        if(heading.lengthSquared() > 0)
+            heading.normalize().multiply(speed);
+
+        double predictedVelocityX = motion.velocityX * (1 - HEADING_WEIGHT) + heading.getX() * HEADING_WEIGHT;
+        double predictedVelocityZ = motion.velocityZ * (1 - HEADING_WEIGHT) + heading.getZ() * HEADING_WEIGHT;
+
+        int chunkX = location.getBlockX() >> 4;
+        int chunkZ = location.getBlockZ() >> 4;
+        int predictedChunkX = (int) Math.floor(location.getX() + predictedVelocityX * lookaheadTicks) >> 4;
+        int predictedChunkZ = (int) Math.floor(location.getZ() + predictedVelocityZ * lookaheadTicks) >> 4;
+
+        if(predictedChunkX == chunkX && predictedChunkZ == chunkZ)
+            return 0;
+
+        int viewDistance = player.getViewDistance();
+        List<long[]> candidates = new ArrayList<>();
+
+        // The chunks in view at the predicted position, that the client doesn't have yet
+        for(int x = predictedChunkX - viewDistance; x <= predictedChunkX + viewDistance; x++) {
+            for(int z = predictedChunkZ - viewDistance; z <= predictedChunkZ + viewDistance; z++) {
+                if(Math.abs(x - chunkX) <= viewDistance + 1 && Math.abs(z - chunkZ) <= viewDistance + 1)
+                    continue;
+
+                long distance = (long) (x - chunkX) * (x - chunkX) + (long) (z - chunkZ) * (z - chunkZ);
+                candidates.add(new long[] {distance, x, z});
+            }
+        }
+
+        // The closest chunks are needed first
+        candidates.sort(Comparator.comparingLong(candidate -> candidate[0]));
+
+        int started = 0;
+
+        for(long[] candidate : candidates) {
+            if(started >= budget)
+                break;
+
+            int x = (int) candidate[1];
+            int z = (int) candidate[2];
+            World renderWorld = renderSettings.getRenderChunk(world, x, z);
+
+            if(renderWorld != world && prefetch(renderWorld, x, z))
+                started++;
+        }
+
+        return started;
+    }
+
+    /**
+     * Loads the visualizer chunk asynchronously, and encodes it into the cache on the main thread once it's loaded.
+     *
+     * @return true if prefetching started, false if the chunk is already cached or being prefetched
+     */
+    private boolean prefetch(World renderWorld, int x, int z) {
+        if(chunkPacketCache.getMaxSize() <= 0 || chunkPacketCache.isCached(renderWorld, x, z))
+            return false;
+
+        PrefetchKey key = new PrefetchKey(renderWorld.getUID(), ChunkUtil.getChunkKey(x, z));
+
+        if(!inFlight.add(key))
+            return false;
+
+        prefetchedChunks.increment();
+
+        // Completes on the main thread, while the chunk is still loaded
+        layerCompositor.getChunkAtAsync(renderWorld, x, z).whenComplete((chunk, throwable) -> {
+            inFlight.remove(key);
+
+            if(throwable == null)
+                chunkPacketCache.getIfLoaded(renderWorld, x, z);
+        });
+
+        return true;
+    }
+
+    /**
+     * @return the amount of chunks that were prefetched
+     */
+    public long getPrefetchedChunks() {
+        return prefetchedChunks.sum();
+    }
+
+    private record PrefetchKey(UUID worldId, long chunkKey) {}
+
+    /**
+     * The smoothed horizontal velocity of a player, in blocks per tick.
+     */
+    private static class Motion {
+
+        private final World world;
+        private double lastX;
+        private double lastZ;
+
+        private double velocityX;
+        private double velocityZ;
+
+        private Motion(World world, double x, double z) {
+            this.world = world;
+            this.lastX = x;
+            this.lastZ = z;
+        }
+
+        private void update(double x, double z) {
+            // Averaged with the previous velocity, so a single sharp turn doesn't throw away the prediction
+            velocityX = (velocityX + (x - lastX) / PERIOD) / 2;
+            velocityZ = (velocityZ + (z - lastZ) / PERIOD) / 2;
+
+            lastX = x;
+            lastZ = z;
+        }
+    }
+}
@@ -1,35 +1,219 @@
 package gg.bonka.mirage.chunks;
 
+import gg.bonka.mirage.chunks.render.ClientSectionState;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
 import lombok.Getter;
-import org.bukkit.Chunk;
+import lombok.Setter;
 import org.bukkit.World;
+import org.jetbrains.annotations.Nullable;
 
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Map;
 import java.util.Objects;
+import java.util.function.LongPredicate;
 
-@Getter
-class ChunkRenderSettings {
+/**
+ * The render settings of a single player, read by the packet listeners on the Netty threads.
+ * <br><br>
+ * The mappings come from the personal {@link RenderProfile} of the player, or from the named profile the player is subscribed to.
+ * The client side state is written by both the main thread and the packet threads, and is guarded by its own lock.
+ * All chunk keys are {@link ChunkUtil#getChunkKey(int, int)} keys.
+ */
+class ChunkRenderSettings implements ClientSectionState {
 
-    private final HashMap<World, World> renderWorldAs = new HashMap<>();
-    private final HashMap<Long, World> renderChunkAs = new HashMap<>();
+    @Getter
+    private final RenderProfile personalProfile;
 
-    private final HashMap<Long, World> clientsideChunks = new HashMap<>();
+    // The named profile this player is subscribed to, rendered instead of the personal profile
+    @Getter
+    @Setter
+    private volatile @Nullable RenderProfile sharedProfile;
 
-    public ChunkRenderSettings(World world, World visualizer) {
-        renderWorldAs.put(world, visualizer);
+    private final Object clientsideLock = new Object();
+
+    // The world the client has in the whole chunk, chunks of the real world aren't stored
+    private final Long2ObjectOpenHashMap<World> clientsideChunks = new Long2ObjectOpenHashMap<>();
+
+    // Chunks where the client has different worlds in different sections, because an update was only partially sent
+    private final Long2ObjectOpenHashMap<World[]> clientsideSections = new Long2ObjectOpenHashMap<>();
+
+    /**
+     * @param onChange called whenever the mappings of the personal profile change
+     */
+    public ChunkRenderSettings(Runnable onChange) {
+        this.personalProfile = new RenderProfile(null, onChange);
     }
 
-    public ChunkRenderSettings(Chunk chunk, Chunk visualizer) {
-        long chunkKey = chunk.getChunkKey();
-        renderChunkAs.put(chunkKey, visualizer.getWorld());
+    /**
+     * @return the profile that is currently rendered for this player
+     */
+    public RenderProfile getProfile() {
+        return Objects.requireNonNullElse(sharedProfile, personalProfile);
     }
 
     public World getRenderChunk(World world, int x, int z) {
-        long chunkKey = ChunkUtil.getChunkKey(x, z);
+        return getProfile().getRenderChunk(world, x, z);
+    }
+
+    /**
+     * Whether these settings still influence what the client sees.
+     * This is the case when any world or chunk is mapped, or when the client still holds chunks of another world.
+     *
+     * @return true if the packets of this player need to be inspected
+     */
+    public boolean isActive() {
+        if(getProfile().hasMappings())
+            return true;
+
+        synchronized (clientsideLock) {
+            return !clientsideChunks.isEmpty() || !clientsideSections.isEmpty();
+        }
+    }
+
+    /**
+     * Records that the client received the whole chunk of the given world, for example through a chunk packet.
+     *
+     * @param world the real world the chunk is in
+     * @param chunkKey the key of the chunk
+     * @param clientsideWorld the world the client now has in the chunk
+     */
+    @Override
+    public void setClientsideChunk(World world, long chunkKey, World clientsideWorld) {
+        synchronized (clientsideLock) {
+            clientsideSections.remove(chunkKey);
+
+            if(clientsideWorld == world)
+                clientsideChunks.remove(chunkKey);
+            else
+                clientsideChunks.put(chunkKey, clientsideWorld);
+        }
+    }
+
+    /**
+     * Removes the client side state of a chunk the client unloaded.
+     *
+     * @param chunkKey the key of the chunk
+     */
+    public void forgetClientsideChunk(long chunkKey) {
+        synchronized (clientsideLock) {
+            clientsideChunks.remove(chunkKey);
+            clientsideSections.remove(chunkKey);
+        }
+    }
+
+    /**
+     * Removes the client side state of all chunks, used when the client dropped all chunks at once.
+     */
+    public void clearClientsideChunks() {
+        synchronized (clientsideLock) {
+            clientsideChunks.clear();
+            clientsideSections.clear();
+        }
+    }
+
+    /**
+     * Removes the client side state of all chunks outside the square around the center.
+     *
+     * @param centerX the chunk x coordinate of the center
+     * @param centerZ the chunk z coordinate of the center
+     * @param radius the radius of the square in chunks
+     */
+    public void trimClientsideChunks(int centerX, int centerZ, int radius) {
+        synchronized (clientsideLock) {
+            LongPredicate outside = chunkKey -> Math.abs(ChunkUtil.getChunkX(chunkKey) - centerX) > radius || Math.abs(ChunkUtil.getChunkZ(chunkKey) - centerZ) > radius;
+
+            clientsideChunks.keySet().removeIf(outside);
+            clientsideSections.keySet().removeIf(outside);
+
+            // The maps never shrink on their own, so give the memory of a previously larger view area back
+            clientsideChunks.trim();
+            clientsideSections.trim();
+        }
+    }
+
+    /**
+     * Adds the chunks of which the client has another world than the real world, per world.
+     *
+     * @param world the real world the player is in
+     * @param mirrored the chunk keys per world to add the chunks to
+     */
+    public void collectMirroredChunks(World world, Map<World, LongSet> mirrored) {
+        synchronized (clientsideLock) {
+            for(Long2ObjectMap.Entry<World> entry : clientsideChunks.long2ObjectEntrySet()) {
+                if(entry.getValue() != world)
+                    mirrored.computeIfAbsent(entry.getValue(), w -> new LongOpenHashSet()).add(entry.getLongKey());
+            }
+
+            for(Long2ObjectMap.Entry<World[]> entry : clientsideSections.long2ObjectEntrySet()) {
+                for(World section : entry.getValue()) {
+                    if(section != world)
+                        mirrored.computeIfAbsent(section, w -> new LongOpenHashSet()).add(entry.getLongKey());
+                }
+            }
+        }
+    }
+
+    public int getClientsideChunkCount() {
+        synchronized (clientsideLock) {
+            return clientsideChunks.size() + clientsideSections.size();
+        }
+    }
+
+    /**
+     * Estimates the memory used by the client side state, assuming compressed object pointers.
+     *
+     * @return the estimated memory usage in bytes
+     */
+    public long estimateMemoryUsage() {
+        synchronized (clientsideLock) {
+            // Every slot of an open hash map has a long key and a reference, and the maps are at most 75% full
+            long bytes = (long) ((clientsideChunks.size() + clientsideSections.size()) / Long2ObjectOpenHashMap.DEFAULT_LOAD_FACTOR * 12);
+
+            for(World[] sections : clientsideSections.values())
+                bytes += 16 + 4L * sections.length;
+
+            return bytes;
+        }
+    }
+
+    @Override
+    public World getClientsideWorld(World world, long chunkKey, int sectionIndex) {
+        synchronized (clientsideLock) {
+            World[] sections = clientsideSections.get(chunkKey);
+
+            if(sections != null && sectionIndex < sections.length)
+                return sections[sectionIndex];
+
+            return Objects.requireNonNullElse(clientsideChunks.get(chunkKey), world);
+        }
+    }
+
+    @Override
+    public void setClientsideWorld(World world, long chunkKey, int sectionIndex, int sectionCount, World clientsideWorld) {
+        synchronized (clientsideLock) {
+            World[] sections = clientsideSections.get(chunkKey);
+
+            if(sections == null || sections.length != sectionCount) {
+                if(getClientsideWorld(world, chunkKey, sectionIndex) == clientsideWorld)
+                    return;
+
+                sections = new World[sectionCount];
+                Arrays.fill(sections, Objects.requireNonNullElse(clientsideChunks.get(chunkKey), world));
+                clientsideSections.put(chunkKey, sections);
+            }
+
+            sections[sectionIndex] = clientsideWorld;
 
-        if(renderChunkAs.containsKey(chunkKey))
-            return renderChunkAs.get(chunkKey);
+            for(World section : sections) {
+                if(section != clientsideWorld)
+                    return;
+            }
 
-        return Objects.requireNonNullElse(renderWorldAs.get(world), world);
+            // The whole chunk is of the same world again
+            setClientsideChunk(world, chunkKey, clientsideWorld);
+        }
     }
 }
@@ -4,17 +4,44 @@ import com.comphenix.protocol.PacketType;
 import com.comphenix.protocol.ProtocolLibrary;
 import com.comphenix.protocol.events.ListenerPriority;
 import com.comphenix.protocol.events.PacketAdapter;
+import com.comphenix.protocol.events.PacketContainer;
 import com.comphenix.protocol.events.PacketEvent;
-import com.comphenix.protocol.wrappers.BlockPosition;
-import com.comphenix.protocol.wrappers.WrappedBlockData;
+import com.comphenix.protocol.wrappers.ChunkCoordIntPair;
 import gg.bonka.mirage.Mirage;
+import gg.bonka.mirage.chunks.cache.ChunkPacketCache;
+import gg.bonka.mirage.chunks.cache.LightSectionCache;
+import gg.bonka.mirage.chunks.cache.LightSectionCache.LightSection;
+import gg.bonka.mirage.chunks.cache.VisualizerChunkResidency;
+import gg.bonka.mirage.chunks.diff.SectionFingerprintIndex;
 import gg.bonka.mirage.chunks.events.FinishPlayerWorldRenderingReloadEvent;
 import gg.bonka.mirage.chunks.events.StartPlayerWorldRenderingReloadEvent;
 import gg.bonka.mirage.chunks.packets.ChunkPacket;
-import gg.bonka.mirage.chunks.packets.MultiBlockPacket;
+import gg.bonka.mirage.chunks.packets.ChunkPacketData;
+import gg.bonka.mirage.chunks.render.ChunkRefresh;
+import gg.bonka.mirage.chunks.render.ChunkRenderSnapshot;
+import gg.bonka.mirage.chunks.render.RenderBatch;
+import gg.bonka.mirage.chunks.render.RenderLoadMonitor;
+import gg.bonka.mirage.chunks.render.RenderPacer;
+import gg.bonka.mirage.chunks.render.RenderPipeline;
+import gg.bonka.mirage.chunks.render.RenderPriority;
+import gg.bonka.mirage.chunks.render.RenderView;
+import gg.bonka.mirage.chunks.render.SectionUpdate;
+import gg.bonka.mirage.chunks.render.ViewRenderPriority;
+import gg.bonka.mirage.chunks.render.RenderScheduler;
+import gg.bonka.mirage.configuration.MirageConfig;
+import gg.bonka.mirage.filesystem.WorldsDirectoryManager;
+import gg.bonka.mirage.misc.ConsoleLogger;
+import gg.bonka.mirage.world.MirageWorld;
+import it.unimi.dsi.fastutil.longs.LongArrayFIFOQueue;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
 import lombok.Getter;
+import net.minecraft.core.BlockPos;
 import net.minecraft.core.SectionPos;
+import net.minecraft.network.protocol.game.ClientboundBlockUpdatePacket;
+import net.minecraft.network.protocol.game.ClientboundChunksBiomesPacket.ChunkBiomeData;
 import net.minecraft.server.level.ServerChunkCache;
+import net.minecraft.world.level.block.state.BlockState;
 import net.minecraft.world.level.chunk.LevelChunk;
 import net.minecraft.world.level.chunk.LevelChunkSection;
 import org.bukkit.*;
@@ -22,18 +49,74 @@ import org.bukkit.craftbukkit.CraftWorld;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
 import org.bukkit.event.player.PlayerQuitEvent;
-import org.bukkit.scheduler.BukkitRunnable;
+import org.bukkit.event.world.WorldLoadEvent;
+import org.bukkit.event.world.WorldUnloadEvent;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.File;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class ChunkRenderingSystem implements Listener {
 
     @Getter
     private static ChunkRenderingSystem instance;
 
-    private final Map<UUID, ChunkRenderSettings> playerRenderSettings = new HashMap<>();
-    private final Map<UUID, BukkitRunnable> playerRenderingTasks = new HashMap<>();
+    // Read by the packet listeners on the Netty threads
+    private final Map<UUID, ChunkRenderSettings> playerRenderSettings = new ConcurrentHashMap<>();
+    private final Map<UUID, CompletableFuture<List<SectionUpdate>>> pendingRenderBuilds = new HashMap<>();
+    private final Map<String, RenderProfile> profiles = new HashMap<>();
+
+    @Getter
+    private final ChunkPacketCache chunkPacketCache;
+
+    @Getter
+    private final LightSectionCache lightSectionCache;
+
+    @Getter
+    private final SectionFingerprintIndex fingerprintIndex = new SectionFingerprintIndex();
+
+    @Getter
+    private final BlockChangeTracker blockChangeTracker;
+
+    @Getter
+    private final RenderPipeline renderPipeline;
+
+    @Getter
+    private final RenderScheduler renderScheduler;
+
+    @Getter
+    private final RenderLoadMonitor renderLoadMonitor;
+
+    @Getter
+    private final DeferredChunkSender deferredChunkSender;
+
+    @Getter
+    private final VisualizerChunkResidency visualizerChunkResidency;
+
+    @Getter
+    private final ChunkPrefetcher chunkPrefetcher;
+
+    @Getter
+    private final VisualizerChangeMirror visualizerChangeMirror;
+
+    @Getter
+    private final LayerCompositor layerCompositor;
+
+    // Updates that were postponed because the server was overloaded, in the order they were requested
+    private final Set<UUID> deferredUpdates = new LinkedHashSet<>();
+
+    // Chunk refreshes of which not every chunk is encoded yet, continued in the next ticks
+    private final Map<UUID, PendingRefresh> pendingRefreshes = new LinkedHashMap<>();
+
+    private final PacketAdapter chunkPacketListener;
+    private final PacketAdapter blockChangeListener;
+    private final PacketAdapter chunkUnloadListener;
+    private boolean packetListenersRegistered = false;
 
     public ChunkRenderingSystem() {
         if(instance != null) {
@@ -44,62 +127,368 @@ public class ChunkRenderingSystem implements Listener {
 
         Bukkit.getPluginManager().registerEvents(this, Mirage.getInstance());
 
-        ProtocolLibrary.getProtocolManager().addPacketListener(new PacketAdapter(Mirage.getInstance(), PacketType.Play.Server.MAP_CHUNK) {
+        MirageConfig config = Mirage.getInstance().getMirageConfig();
+        chunkPacketCache = new ChunkPacketCache(config.getChunkPacketCacheSize(), config.getChunkPacketCacheMaxAge());
+        Bukkit.getScheduler().runTaskTimer(Mirage.getInstance(), chunkPacketCache::tick, 1, 1);
+
+        lightSectionCache = new LightSectionCache(config.getLightCacheSize());
+        Bukkit.getScheduler().runTaskTimer(Mirage.getInstance(), lightSectionCache::tick, 1, 1);
+        Bukkit.getScheduler().runTaskTimer(Mirage.getInstance(), fingerprintIndex::tick, 1, 1);
+
+        blockChangeTracker = new BlockChangeTracker();
+
+        // Composite worlds are kept up to date with their layers, their changes are reported back to the block change tracker
+        layerCompositor = new LayerCompositor(blockChangeTracker);
+        layerCompositor.runTaskTimer(Mirage.getInstance(), 1, 1);
+
+        deferredChunkSender = new DeferredChunkSender(chunkPacketCache, layerCompositor, config.getVisualizerChunkLoadTimeout());
+        visualizerChunkResidency = new VisualizerChunkResidency(config.getVisualizerChunkRetainLimit());
+        Bukkit.getScheduler().runTaskTimer(Mirage.getInstance(), this::updateVisualizerResidency, 20, 20);
+
+        renderPipeline = new RenderPipeline(config.getRenderWorkerThreads(), fingerprintIndex);
+
+        chunkPrefetcher = new ChunkPrefetcher(playerRenderSettings, chunkPacketCache, layerCompositor, config.getPrefetchLookaheadTicks(), config.getPrefetchChunksPerTick());
+        if(config.getPrefetchChunksPerTick() > 0)
+            chunkPrefetcher.runTaskTimer(Mirage.getInstance(), ChunkPrefetcher.PERIOD, ChunkPrefetcher.PERIOD);
+
+        // One scheduler sends the render packets of all players, so the server wide bandwidth can be limited.
+        renderLoadMonitor = new RenderLoadMonitor(config.getRenderMsptThreshold(), config.getRenderMaxMainThreadMillisPerTick());
+        renderScheduler = new RenderScheduler(config.getRenderGlobalMaxBytesPerTick(), renderLoadMonitor);
+        renderScheduler.runTaskTimer(Mirage.getInstance(), 1, 1);
+        Bukkit.getScheduler().runTaskTimer(Mirage.getInstance(), this::processDeferredUpdates, 1, 1);
+        Bukkit.getScheduler().runTaskTimer(Mirage.getInstance(), this::processPendingRefreshes, 1, 1);
+
+        // Edits of mirrored visualizers are forwarded to the players that see them, instead of waiting for the next render reload
+        visualizerChangeMirror = new VisualizerChangeMirror(playerRenderSettings, visualizerChunkResidency, renderScheduler);
+        visualizerChangeMirror.runTaskTimer(Mirage.getInstance(), 1, 1);
+
+        blockChangeTracker.addCallback(chunkPacketCache::invalidateBlock);
+        blockChangeTracker.addCallback(lightSectionCache::invalidateBlock);
+        blockChangeTracker.addCallback(fingerprintIndex::invalidateBlock);
+        blockChangeTracker.addCallback(visualizerChangeMirror::recordChange);
+        blockChangeTracker.addCallback(layerCompositor::recordChange);
+
+        blockChangeTracker.addChunkCallback(chunkPacketCache::invalidateChunk);
+        blockChangeTracker.addChunkCallback(lightSectionCache::invalidateChunk);
+        blockChangeTracker.addChunkCallback(fingerprintIndex::invalidateChunk);
+
+        // The unload packets keep the client side state small, this only removes what a missed unload would leave behind.
+        Bukkit.getScheduler().runTaskTimer(Mirage.getInstance(), this::trimClientsideChunks, 20, 20);
+
+        chunkPacketListener = new PacketAdapter(Mirage.getInstance(), PacketType.Play.Server.MAP_CHUNK) {
             @Override
             public void onPacketSending(PacketEvent event) {
+                Player player = event.getPlayer();
+                ChunkRenderSettings renderSettings = playerRenderSettings.get(player.getUniqueId());
+
+                // Players without any render settings always get the original packet, untouched.
+                if(renderSettings == null)
+                    return;
+
                 int chunkX = event.getPacket().getIntegers().read(0);
                 int chunkZ = event.getPacket().getIntegers().read(1);
+                long chunkKey = ChunkUtil.getChunkKey(chunkX, chunkZ);
+
+                World world = player.getWorld();
+                World renderWorld = renderSettings.getRenderChunk(world, chunkX, chunkZ);
+
+                // Nothing is remapped, so the client will simply hold the real chunk.
+                if(renderWorld == world) {
+                    renderSettings.setClientsideChunk(world, chunkKey, world);
+                    return;
+                }
 
-                ChunkPacket chunkPacket = getChunkPacket(event.getPlayer(), chunkX, chunkZ);
+                ChunkPacket chunkPacket = new ChunkPacket(chunkX, chunkZ, renderWorld, chunkPacketCache.getIfLoaded(renderWorld, chunkX, chunkZ));
+                visualizerChunkResidency.recordAccess(renderWorld, chunkPacket.isValid());
+
+                // The visualizer chunk isn't loaded, hold back the real chunk until it's loaded asynchronously
                 if(!chunkPacket.isValid()) {
+                    event.setCancelled(true);
+                    deferredChunkSender.defer(player, renderSettings, world, renderWorld, chunkX, chunkZ);
                     return;
                 }
 
                 event.setPacket(chunkPacket);
+                renderSettings.setClientsideChunk(world, chunkKey, renderWorld);
+            }
+        };
 
-                ChunkRenderSettings playerSettings = playerRenderSettings.get(event.getPlayer().getUniqueId());
-                if(playerSettings != null) {
-                    playerSettings.getClientsideChunks().put(chunkPacket.getChunkKey(), chunkPacket.getWorld());
-                }
+        // Ensures interacting with mirage blocks, explosions and pistons don't remove the ghost blocks.
+        blockChangeListener = new PacketAdapter(Mirage.getInstance(), ListenerPriority.LOWEST, PacketType.Play.Server.BLOCK_CHANGE, PacketType.Play.Server.MULTI_BLOCK_CHANGE) {
+            @Override
+            public void onPacketSending(PacketEvent event) {
+                ChunkRenderSettings renderSettings = playerRenderSettings.get(event.getPlayer().getUniqueId());
+
+                if(renderSettings == null)
+                    return;
+
+                if(event.getPacketType() == PacketType.Play.Server.BLOCK_CHANGE)
+                    remapBlockUpdate(event, renderSettings);
+                else
+                    remapSectionBlocksUpdate(event, renderSettings);
             }
-        });
+        };
 
-        // Ensures interacting with mirage blocks doesn't remove the ghost blocks.
-        ProtocolLibrary.getProtocolManager().addPacketListener(new PacketAdapter(Mirage.getInstance(), ListenerPriority.LOWEST, PacketType.Play.Server.BLOCK_CHANGE) {
+        // Keeps the client side state limited to the chunks the client actually has loaded.
+        chunkUnloadListener = new PacketAdapter(Mirage.getInstance(), PacketType.Play.Server.UNLOAD_CHUNK) {
             @Override
             public void onPacketSending(PacketEvent event) {
-                Player player = event.getPlayer();
-                ChunkRenderSettings renderSettings = playerRenderSettings.get(player.getUniqueId());
+                ChunkRenderSettings renderSettings = playerRenderSettings.get(event.getPlayer().getUniqueId());
 
                 if(renderSettings == null)
                     return;
 
-                BlockPosition position = event.getPacket().getBlockPositionModifier().read(0);
+                ChunkCoordIntPair chunk = event.getPacket().getChunkCoordIntPairs().read(0);
+                long chunkKey = ChunkUtil.getChunkKey(chunk.getChunkX(), chunk.getChunkZ());
 
-                Location location = new Location(player.getWorld(), position.getX(), position.getY(), position.getZ());
+                renderSettings.forgetClientsideChunk(chunkKey);
+                deferredChunkSender.cancel(event.getPlayer().getUniqueId(), chunkKey);
+            }
+        };
+    }
 
-                WrappedBlockData worldBlockData = WrappedBlockData.createData(location.getBlock().getBlockData());
-                WrappedBlockData packetBlockData = event.getPacket().getBlockData().read(0);
+    /**
+     * Swaps the block of a block update for the block of the rendered world, when its chunk is rendered as another world.
+     * Only loaded sections are read, chunks are never loaded from the packet threads.
+     */
+    private void remapBlockUpdate(PacketEvent event, ChunkRenderSettings renderSettings) {
+        ClientboundBlockUpdatePacket packet = (ClientboundBlockUpdatePacket) event.getPacket().getHandle();
+        BlockPos position = packet.getPos();
 
-                // Means this block is already a fake block that is most likely being sent by another plugins
-                // We don't want to intervene with those packets!
-                if(!worldBlockData.equals(packetBlockData))
-                    return;
+        World world = event.getPlayer().getWorld();
+        World renderWorld = renderSettings.getRenderChunk(world, position.getX() >> 4, position.getZ() >> 4);
+
+        if(renderWorld == world)
+            return;
 
-                World renderChunkWorld = renderSettings.getRenderChunk(location.getWorld(), location.getChunk().getX(), location.getChunk().getZ());
+        LevelChunkSection section = getLoadedSection(world, position.getX() >> 4, position.getY() >> 4, position.getZ() >> 4);
+        LevelChunkSection renderSection = getLoadedSection(renderWorld, position.getX() >> 4, position.getY() >> 4, position.getZ() >> 4);
 
-                // Get the fake block, and simply swap the type of the packet
-                Location renderLocation = new Location(renderChunkWorld, position.getX(), position.getY(), position.getZ());
-                WrappedBlockData data = WrappedBlockData.createData(renderLocation.getBlock().getBlockData());
+        if(section == null || renderSection == null)
+            return;
 
-                event.getPacket().getBlockData().write(0, data);
-            }
-        });
+        int x = position.getX() & 15;
+        int y = position.getY() & 15;
+        int z = position.getZ() & 15;
+
+        // Means this block is already a fake block that is most likely being sent by another plugins
+        // We don't want to intervene with those packets!
+        if(packet.getBlockState() != section.getBlockState(x, y, z))
+            return;
+
+        BlockState renderState = renderSection.getBlockState(x, y, z);
+
+        if(renderState != packet.getBlockState())
+            event.setPacket(new PacketContainer(PacketType.Play.Server.BLOCK_CHANGE, new ClientboundBlockUpdatePacket(position, renderState)));
+    }
+
+    /**
+     * Swaps the blocks of a section update for the blocks of the rendered world, when its chunk is rendered as another world.
+     * The same packet can be broadcast to several players, so a copy is sent when anything changes.
+     */
+    private void remapSectionBlocksUpdate(PacketEvent event, ChunkRenderSettings renderSettings) {
+        PacketContainer packet = event.getPacket();
+        SectionPos sectionPos = packet.getSpecificModifier(SectionPos.class).read(0);
+
+        World world = event.getPlayer().getWorld();
+        World renderWorld = renderSettings.getRenderChunk(world, sectionPos.x(), sectionPos.z());
+
+        if(renderWorld == world)
+            return;
+
+        LevelChunkSection section = getLoadedSection(world, sectionPos.x(), sectionPos.y(), sectionPos.z());
+        LevelChunkSection renderSection = getLoadedSection(renderWorld, sectionPos.x(), sectionPos.y(), sectionPos.z());
+
+        if(section == null || renderSection == null)
+            return;
+
+        short[] positions = packet.getSpecificModifier(short[].class).read(0);
+        BlockState[] states = packet.getSpecificModifier(BlockState[].class).read(0);
+        BlockState[] remappedStates = null;
+
+        for(int i = 0; i < positions.length; i++) {
+            int x = SectionPos.sectionRelativeX(positions[i]);
+            int y = SectionPos.sectionRelativeY(positions[i]);
+            int z = SectionPos.sectionRelativeZ(positions[i]);
+
+            // Blocks that are already fake are left alone, just like single block updates
+            if(states[i] != section.getBlockState(x, y, z))
+                continue;
+
+            BlockState renderState = renderSection.getBlockState(x, y, z);
+
+            if(renderState == states[i])
+                continue;
+
+            if(remappedStates == null)
+                remappedStates = states.clone();
+
+            remappedStates[i] = renderState;
+        }
+
+        if(remappedStates == null)
+            return;
+
+        PacketContainer remappedPacket = packet.shallowClone();
+        remappedPacket.getSpecificModifier(BlockState[].class).write(0, remappedStates);
+        event.setPacket(remappedPacket);
+    }
+
+    /**
+     * Gets a section of a chunk, but only when the chunk is already loaded.
+     *
+     * @return the section, or null when the chunk isn't loaded or the section is outside the world
+     */
+    private static @Nullable LevelChunkSection getLoadedSection(World world, int chunkX, int sectionY, int chunkZ) {
+        LevelChunk chunk = ((CraftWorld) world).getHandle().getChunkSource().getChunkNow(chunkX, chunkZ);
+
+        if(chunk == null)
+            return null;
+
+        int sectionIndex = chunk.getSectionIndexFromSectionY(sectionY);
+
+        if(sectionIndex < 0 || sectionIndex >= chunk.getSectionsCount())
+            return null;
+
+        return chunk.getSection(sectionIndex);
+    }
+
+    /**
+     * Registers the packet listeners while at least one player has rendering that differs from the real world,
+     * and unregisters them once nobody does. Without any mappings every chunk packet is passed through untouched,
+     * so there is no reason for ProtocolLib to call into Mirage at all.
+     */
+    private void updatePacketListeners() {
+        boolean needsListeners = playerRenderSettings.values().stream().anyMatch(ChunkRenderSettings::isActive);
+
+        if(needsListeners == packetListenersRegistered)
+            return;
+
+        if(needsListeners) {
+            ProtocolLibrary.getProtocolManager().addPacketListener(chunkPacketListener);
+            ProtocolLibrary.getProtocolManager().addPacketListener(blockChangeListener);
+            ProtocolLibrary.getProtocolManager().addPacketListener(chunkUnloadListener);
+        } else {
+            ProtocolLibrary.getProtocolManager().removePacketListener(chunkPacketListener);
+            ProtocolLibrary.getProtocolManager().removePacketListener(blockChangeListener);
+            ProtocolLibrary.getProtocolManager().removePacketListener(chunkUnloadListener);
+        }
+
+        packetListenersRegistered = needsListeners;
+    }
+
+    /**
+     * Stops the render workers and removes the composite worlds, should only be called when Mirage gets disabled.
+     */
+    public void shutdown() {
+        renderPipeline.shutdown();
+        visualizerChunkResidency.releaseAll();
+        layerCompositor.shutdown();
     }
 
     @EventHandler
     public void onPlayerQuit(PlayerQuitEvent event) {
-        removeRendering(event.getPlayer());
+        ChunkRenderSettings renderSettings = playerRenderSettings.remove(event.getPlayer().getUniqueId());
+
+        if(renderSettings != null && renderSettings.getSharedProfile() != null)
+            renderSettings.getSharedProfile().removeSubscriber(event.getPlayer().getUniqueId());
+
+        pendingRenderBuilds.remove(event.getPlayer().getUniqueId());
+        renderScheduler.remove(event.getPlayer());
+        deferredUpdates.remove(event.getPlayer().getUniqueId());
+        pendingRefreshes.remove(event.getPlayer().getUniqueId());
+        deferredChunkSender.cancelAll(event.getPlayer().getUniqueId());
+        updatePacketListeners();
+    }
+
+    @EventHandler
+    public void onPlayerChangedWorld(PlayerChangedWorldEvent event) {
+        ChunkRenderSettings renderSettings = playerRenderSettings.get(event.getPlayer().getUniqueId());
+
+        if(renderSettings == null)
+            return;
+
+        // The client dropped all chunks of the previous world, the chunks of the new world are tracked as they're sent
+        renderSettings.clearClientsideChunks();
+        renderScheduler.discard(event.getPlayer());
+        pendingRefreshes.remove(event.getPlayer().getUniqueId());
+        deferredChunkSender.cancelAll(event.getPlayer().getUniqueId());
+        updatePacketListeners();
+    }
+
+    /**
+     * Removes the client side state of chunks far outside the view distance of their player.
+     * Normally the unload packets already remove those, but this keeps the state bounded if one was missed.
+     */
+    private void trimClientsideChunks() {
+        for(Map.Entry<UUID, ChunkRenderSettings> entry : playerRenderSettings.entrySet()) {
+            Player player = Bukkit.getPlayer(entry.getKey());
+
+            if(player == null)
+                continue;
+
+            Location location = player.getLocation();
+
+            // Clients keep an extra chunk in their cache, the rest of the margin accounts for movement since the last check
+            int radius = player.getViewDistance() + 3;
+            entry.getValue().trimClientsideChunks(location.getBlockX() >> 4, location.getBlockZ() >> 4, radius);
+        }
+    }
+
+    /**
+     * Keeps the visualizer chunks that are mirrored to any player loaded, and releases the ones nobody needs anymore.
+     */
+    private void updateVisualizerResidency() {
+        Map<World, LongSet> mirrored = new HashMap<>();
+
+        for(Map.Entry<UUID, ChunkRenderSettings> entry : playerRenderSettings.entrySet()) {
+            Player player = Bukkit.getPlayer(entry.getKey());
+
+            if(player != null)
+                entry.getValue().collectMirroredChunks(player.getWorld(), mirrored);
+        }
+
+        visualizerChunkResidency.update(mirrored);
+    }
+
+    /**
+     * Gets the amount of chunks of which Mirage tracks what the client of the player has.
+     *
+     * @param player the player to get the tracked chunks of
+     * @return the amount of tracked chunks
+     */
+    public int getTrackedChunkCount(Player player) {
+        ChunkRenderSettings renderSettings = playerRenderSettings.get(player.getUniqueId());
+        return renderSettings == null ? 0 : renderSettings.getClientsideChunkCount();
+    }
+
+    /**
+     * Estimates the amount of memory used for the client side state of the player.
+     *
+     * @param player the player to get the memory usage of
+     * @return the estimated memory usage in bytes
+     */
+    public long getEstimatedMemoryUsage(Player player) {
+        ChunkRenderSettings renderSettings = playerRenderSettings.get(player.getUniqueId());
+        return renderSettings == null ? 0 : renderSettings.estimateMemoryUsage();
+    }
+
+    @EventHandler
+    public void onWorldLoad(WorldLoadEvent event) {
+        World world = event.getWorld();
+        MirageWorld mirageWorld = WorldsDirectoryManager.getMirageWorld(world.getName());
+
+        // Persistent worlds are modified in place, so their saved fingerprints don't describe the loaded world.
+        if(mirageWorld.getSaveDirectory().exists() && !mirageWorld.getPersistent())
+            fingerprintIndex.load(world.getName(), new File(mirageWorld.getSaveDirectory(), SectionFingerprintIndex.FILE_NAME));
+    }
+
+    @EventHandler
+    public void onWorldUnload(WorldUnloadEvent event) {
+        chunkPacketCache.invalidateWorld(event.getWorld());
+        lightSectionCache.invalidateWorld(event.getWorld());
+        fingerprintIndex.invalidateWorld(event.getWorld());
+        visualizerChunkResidency.invalidateWorld(event.getWorld());
     }
 
     /**
@@ -110,12 +499,35 @@ public class ChunkRenderingSystem implements Listener {
      * @param player the player whose chunks are being updated
      */
     public void updateChunks(Player player) {
+        updateChunks(player, new RenderBatch());
+    }
+
+    /**
+     * Updates the chunks of all players subscribed to the profile.
+     * Every section is only copied, diffed and encoded once, and the same packets are written to all subscribers.
+     *
+     * @param profile the profile whose subscribers are updated
+     */
+    public void updateChunks(RenderProfile profile) {
+        RenderBatch batch = new RenderBatch();
+
+        for(UUID uuid : profile.getSubscribers()) {
+            Player player = Bukkit.getPlayer(uuid);
+
+            if(player != null)
+                updateChunks(player, batch);
+        }
+    }
+
+    private void updateChunks(Player player, RenderBatch batch) {
         new StartPlayerWorldRenderingReloadEvent(player).callEvent();
 
-        if(Mirage.getInstance().getMirageConfig().isUseRealtimeWorldLoading())
-            updateChunksRealtime(player);
-        else
+        MirageConfig config = Mirage.getInstance().getMirageConfig();
+
+        if(!config.isUseRealtimeWorldLoading() && config.getFullRefreshMode() == FullRefreshMode.RESPAWN && Bukkit.getWorlds().size() > 1)
             refreshWorld(player);
+        else
+            updateChunksWithinBudget(player, batch);
     }
 
     /**
@@ -135,14 +547,216 @@ public class ChunkRenderingSystem implements Listener {
         new FinishPlayerWorldRenderingReloadEvent(player).callEvent();
     }
 
+    /**
+     * Resends every chunk in the player's view of which the client has another world than should be rendered, as a whole chunk packet.
+     * The chunk data is encoded on the main thread, since it's read from the live chunks, and only serialized on the render workers.
+     * The packets are sent through the paced render queue like realtime updates.
+     * Unlike {@link #refreshWorld(Player)} there is no dimension change, so the client keeps its entities and doesn't show a loading screen.
+     * <br><br>
+     * The chunks are encoded for as long as the render system has main thread time left, the remaining chunks are encoded in the next ticks.
+     * Render chunks that aren't loaded are loaded asynchronously first, so the main thread never waits on disk I/O or world generation.
+     *
+     * @param player the player whose chunks need to be refreshed
+     * @param batch the batch sharing the encoded chunk packets with the other players updated in the same tick
+     */
+    private void refreshChunks(Player player, RenderBatch batch) {
+        ChunkRenderSettings chunkRenderSettings = playerRenderSettings.get(player.getUniqueId());
+
+        if(chunkRenderSettings == null) {
+            new FinishPlayerWorldRenderingReloadEvent(player).callEvent();
+            return;
+        }
+
+        World world = player.getWorld();
+        int playerX = player.getLocation().getBlockX() >> 4;
+        int playerZ = player.getLocation().getBlockZ() >> 4;
+
+        // We add 1 because clients always keep an extra chunk in their cache.
+        int viewDistance = player.getViewDistance() + 1;
+
+        renderScheduler.discard(player);
+
+        // The build of a previous refresh was encoded from chunks that may have changed since
+        CompletableFuture<List<SectionUpdate>> previousBuild = pendingRenderBuilds.remove(player.getUniqueId());
+        if(previousBuild != null)
+            previousBuild.cancel(false);
+
+        PendingRefresh refresh = new PendingRefresh(player, chunkRenderSettings, batch);
+
+        for (int x = playerX - viewDistance; x <= playerX + viewDistance; x++) {
+            for (int z = playerZ - viewDistance; z <= playerZ + viewDistance; z++) {
+                if (world.isChunkLoaded(x, z))
+                    refresh.chunks.enqueue(ChunkUtil.getChunkKey(x, z));
+            }
+        }
+
+        pendingRefreshes.put(player.getUniqueId(), refresh);
+        continueRefresh(refresh);
+    }
+
+    /**
+     * Encodes the chunks of a refresh for as long as the render system has main thread time left this tick,
+     * and starts building the chunk packets once every chunk is encoded.
+     *
+     * @param refresh the refresh to continue
+     */
+    private void continueRefresh(PendingRefresh refresh) {
+        Player player = refresh.player;
+        World world = player.getWorld();
+        int minSectionY = world.getMinHeight() >> 4;
+        int sectionCount = (world.getMaxHeight() - world.getMinHeight()) >> 4;
+
+        while (!refresh.chunks.isEmpty() && renderLoadMonitor.hasTickBudget()) {
+            long chunkKey = refresh.chunks.dequeueLong();
+            int x = ChunkUtil.getChunkX(chunkKey);
+            int z = ChunkUtil.getChunkZ(chunkKey);
+
+            // The client drops the chunk as well once it's unloaded
+            if (!world.isChunkLoaded(x, z))
+                continue;
+
+            World renderWorld = refresh.chunkRenderSettings.getRenderChunk(world, x, z);
+
+            if (!isAffected(refresh.chunkRenderSettings, world, chunkKey, sectionCount, renderWorld))
+                continue;
+
+            if (!renderWorld.isChunkLoaded(x, z) && !chunkPacketCache.isCached(renderWorld, x, z)) {
+                // A chunk that couldn't be loaded is skipped, instead of being loaded again
+                if (refresh.loadingChunks.add(chunkKey))
+                    loadRefreshChunk(refresh, renderWorld, chunkKey);
+
+                continue;
+            }
+
+            ChunkPacketData data = chunkPacketCache.getIfLoaded(renderWorld, x, z);
+
+            if (data != null)
+                refresh.refreshes.add(new ChunkRefresh(world, x, z, minSectionY, sectionCount, renderWorld, data));
+        }
+
+        if (!refresh.chunks.isEmpty() || refresh.pendingLoads > 0)
+            return;
+
+        pendingRefreshes.remove(player.getUniqueId());
+        updatePacketListeners();
+
+        RenderView view = RenderView.of(player);
+        submitBuild(player, refresh.chunkRenderSettings, renderPipeline.refresh(refresh.refreshes, refresh.batch, renderScheduler.getRenderPriority(), view), view);
+    }
+
+    /**
+     * Loads a render chunk of a refresh asynchronously, and queues it to be encoded again once it's loaded.
+     */
+    private void loadRefreshChunk(PendingRefresh refresh, World renderWorld, long chunkKey) {
+        refresh.pendingLoads++;
+
+        // Paper completes the future on the main thread
+        layerCompositor.getChunkAtAsync(renderWorld, ChunkUtil.getChunkX(chunkKey), ChunkUtil.getChunkZ(chunkKey)).whenComplete((chunk, throwable) -> {
+            refresh.pendingLoads--;
+
+            if(throwable == null)
+                refresh.chunks.enqueue(chunkKey);
+        });
+    }
+
+    /**
+     * Continues the refreshes that were started in previous ticks, for as long as there is main thread time left this tick.
+     */
+    private void processPendingRefreshes() {
+        for(PendingRefresh refresh : new ArrayList<>(pendingRefreshes.values())) {
+            if(!renderLoadMonitor.hasTickBudget())
+                return;
+
+            // Replaced by a newer update while another refresh was continued
+            if(pendingRefreshes.get(refresh.player.getUniqueId()) != refresh)
+                continue;
+
+            long start = renderLoadMonitor.startTiming();
+
+            try {
+                continueRefresh(refresh);
+            } finally {
+                renderLoadMonitor.stopTiming(start);
+            }
+        }
+    }
+
+    /**
+     * @return true if the client has another world than the render world in any section of the chunk
+     */
+    private static boolean isAffected(ChunkRenderSettings chunkRenderSettings, World world, long chunkKey, int sectionCount, World renderWorld) {
+        for(int i = 0; i < sectionCount; i++) {
+            if(chunkRenderSettings.getClientsideWorld(world, chunkKey, i) != renderWorld)
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Updates the player's chunks in realtime or by resending them, or defers the update when the render system has no main thread time left this tick.
+     *
+     * @param player the player whose chunks need to be updated
+     * @param batch the batch sharing work with the other players updated in the same tick
+     */
+    private void updateChunksWithinBudget(Player player, RenderBatch batch) {
+        if(!renderLoadMonitor.hasTickBudget()) {
+            deferredUpdates.add(player.getUniqueId());
+            renderLoadMonitor.recordDeferred();
+            return;
+        }
+
+        // A deferred update or an unfinished refresh is superseded by this one
+        deferredUpdates.remove(player.getUniqueId());
+        pendingRefreshes.remove(player.getUniqueId());
+
+        long start = renderLoadMonitor.startTiming();
+
+        try {
+            if(Mirage.getInstance().getMirageConfig().isUseRealtimeWorldLoading())
+                snapshotAndBuild(player, batch);
+            else
+                refreshChunks(player, batch);
+        } finally {
+            renderLoadMonitor.stopTiming(start);
+        }
+    }
+
+    /**
+     * Starts deferred realtime updates, for as long as there is main thread time left this tick.
+     */
+    private void processDeferredUpdates() {
+        while(!deferredUpdates.isEmpty() && renderLoadMonitor.hasTickBudget()) {
+            UUID uuid = deferredUpdates.iterator().next();
+            deferredUpdates.remove(uuid);
+
+            Player player = Bukkit.getPlayer(uuid);
+
+            if(player != null)
+                updateChunksWithinBudget(player, new RenderBatch());
+        }
+    }
+
+    /**
+     * @return the amount of updates that are currently waiting for the server to have headroom again
+     */
+    public int getDeferredUpdateCount() {
+        return deferredUpdates.size();
+    }
+
     /**
      * Updates the chunks visible to the specified player within their configured view distance.
-     * The method calculates chunks around the player's current location, sorts them by distance,
-     * generates update packets for these chunks, and sends them to the player.
+     * The method calculates chunks around the player's current location,
+     * snapshots them on the main thread, and lets the render workers generate the section updates.
+     * The updates are handed back to the main thread and submitted to the {@link RenderScheduler}.
+     * <br><br>
+     * Pending updates of a previous call are replaced, since the new snapshots are diffed against what the client actually received.
+     * Sections that were already sent are therefore never sent again, and sections that weren't sent yet are simply part of the new update.
      *
      * @param player the player whose chunks need to be updated
+     * @param batch the batch sharing work with the other players updated in the same tick
      */
-    private void updateChunksRealtime(Player player) {
+    private void snapshotAndBuild(Player player, RenderBatch batch) {
         World world = player.getWorld();
         Location playerLocation = player.getLocation();
         int playerX = playerLocation.getBlockX() >> 4;
@@ -161,114 +775,262 @@ public class ChunkRenderingSystem implements Listener {
             }
         }
 
-        // Sort by distance from player (closest first)
-        chunksToUpdate.sort(Comparator.comparingDouble(chunk -> {
-            double dx = chunk.getX() - playerX;
-            double dz = chunk.getZ() - playerZ;
-            return dx * dx + dz * dz;
-        }));
+        ChunkRenderSettings chunkRenderSettings = playerRenderSettings.get(player.getUniqueId());
 
-        List<MultiBlockPacket> packets = new ArrayList<>();
+        if(chunkRenderSettings == null) {
+            new FinishPlayerWorldRenderingReloadEvent(player).callEvent();
+            return;
+        }
+
+        // Updates that weren't sent yet were diffed against the same client side state, and would conflict with the new ones.
+        renderScheduler.discard(player);
+
+        // Only the snapshots are taken on the main thread, diffing and encoding happens on the render workers.
+        List<ChunkRenderSnapshot> snapshots = new ArrayList<>();
         for(Chunk chunk : chunksToUpdate) {
-            packets.addAll(updateChunk(player, chunk));
+            ChunkRenderSnapshot snapshot = snapshotChunk(chunkRenderSettings, chunk, batch);
+
+            if(snapshot != null)
+                snapshots.add(snapshot);
         }
 
-        sendSectionPackets(player, packets);
+        updatePacketListeners();
+
+        RenderView view = RenderView.of(player);
+        submitBuild(player, chunkRenderSettings, renderPipeline.build(snapshots, renderScheduler.getRenderPriority(), view), view);
     }
 
     /**
-     * Sends a list of {@code MultiBlockPacket} objects to a player in batches to update world sections,
-     * distributing the packet sending process over multiple ticks to avoid client-side stuttering.
+     * Queues the updates once they are built, unless a newer update for the player was requested in the meantime.
      *
-     * @param player the player to whom the packets are sent
-     * @param packets the {@code List} of {@code MultiBlockPacket} objects representing the world sections to update
+     * @param player the player the updates are for
+     * @param chunkRenderSettings the render settings the updates were built for
+     * @param build the build running on the render workers
+     * @param view the view the updates are sorted for
      */
-    private void sendSectionPackets(Player player, List<MultiBlockPacket> packets) {
-        BukkitRunnable previousTask = playerRenderingTasks.remove(player.getUniqueId());
-        if (previousTask != null)
-            previousTask.cancel();
+    private void submitBuild(Player player, ChunkRenderSettings chunkRenderSettings, CompletableFuture<List<SectionUpdate>> build, RenderView view) {
+        UUID uuid = player.getUniqueId();
 
-        // Run over multiple ticks to prevent client-side stuttering
-        BukkitRunnable task = new BukkitRunnable() {
-            private final Iterator<MultiBlockPacket> iterator = packets.iterator();
+        CompletableFuture<List<SectionUpdate>> previousBuild = pendingRenderBuilds.put(uuid, build);
+        if(previousBuild != null)
+            previousBuild.cancel(false);
 
-            @Override
-            public void run() {
-                if (!player.isOnline() || !iterator.hasNext()) {
-                    if (player.isOnline())
-                        new FinishPlayerWorldRenderingReloadEvent(player).callEvent();
+        build.whenComplete((updates, throwable) -> {
+            if(throwable != null) {
+                if(!(throwable instanceof CancellationException))
+                    ConsoleLogger.error(String.format("Failed to build the render update of %s: %s", player.getName(), throwable));
+
+                return;
+            }
 
-                    this.cancel();
-                    playerRenderingTasks.remove(player.getUniqueId());
+            if(!Mirage.getInstance().isEnabled())
+                return;
+
+            Bukkit.getScheduler().runTask(Mirage.getInstance(), () -> {
+                // A newer update was requested while this one was being built
+                if(pendingRenderBuilds.get(uuid) != build)
                     return;
-                }
 
-                for(int i = 0; i < 8 && iterator.hasNext(); i++) {
-                    MultiBlockPacket packet = iterator.next();
-                    ProtocolLibrary.getProtocolManager().sendServerPacket(player, packet);
-                }
+                pendingRenderBuilds.remove(uuid);
+
+                if(player.isOnline())
+                    submitUpdates(player, chunkRenderSettings, updates, view);
+            });
+        });
+    }
+
+    /**
+     * Applies the updates of sections that turned out to be the same right away, and queues the others to be sent.
+     *
+     * @param player the player the updates are for
+     * @param chunkRenderSettings the render settings the updates were diffed against
+     * @param updates the built updates, sorted by the render priority
+     * @param view the view the updates were sorted for
+     */
+    private void submitUpdates(Player player, ChunkRenderSettings chunkRenderSettings, List<SectionUpdate> updates, RenderView view) {
+        List<SectionUpdate> queued = new ArrayList<>(updates.size());
+
+        for(SectionUpdate update : updates) {
+            if(update.hasPacket()) {
+                queued.add(update);
+                continue;
             }
-        };
 
-        playerRenderingTasks.put(player.getUniqueId(), task);
-        task.runTaskTimer(Mirage.getInstance(), 0, 1);
+            if(update.isCurrent(chunkRenderSettings))
+                update.markApplied(chunkRenderSettings);
+        }
+
+        renderScheduler.submit(player, queued, view, chunkRenderSettings);
+        updatePacketListeners();
     }
 
     /**
-     * Updates the specified chunk for the given player by comparing the current rendered sections
-     * with the previously loaded ones, generating packets for the client to update only the differing sections.
+     * Sets the priority deciding in which order realtime render updates are sent to players.
+     * By default, a {@link ViewRenderPriority} is used, sending the sections in front of the player at eye level first.
      *
-     * @param player the player for whom the chunk is updated
-     * @param chunk the chunk to be updated
-     * @return a list of {@code MultiBlockPacket} objects representing the sections that need to be updated
+     * @param renderPriority the priority to use for all future render updates
+     */
+    public void setRenderPriority(RenderPriority renderPriority) {
+        renderScheduler.setRenderPriority(renderPriority);
+    }
+
+    /**
+     * @return the priority deciding in which order realtime render updates are sent to players
      */
-    private List<MultiBlockPacket> updateChunk(Player player, Chunk chunk) {
-        List<MultiBlockPacket> packets = new ArrayList<>();
+    public RenderPriority getRenderPriority() {
+        return renderScheduler.getRenderPriority();
+    }
 
-        ChunkRenderSettings chunkRenderSettings = playerRenderSettings.get(player.getUniqueId());
-        World renderWorld = chunkRenderSettings.getRenderWorldAs().get(chunk.getWorld());
-        World previousWorld = Objects.requireNonNullElse(chunkRenderSettings.getClientsideChunks().get(chunk.getChunkKey()), chunk.getWorld());
+    /**
+     * Gets the render pacer of the player, which decides how fast render updates are sent to them.
+     *
+     * @param player the player to get the pacer for
+     * @return the render pacer of the player
+     */
+    public RenderPacer getRenderPacer(Player player) {
+        return renderScheduler.getPacer(player);
+    }
+
+    /**
+     * Takes a snapshot of the specified chunk for the given player, containing copies of the sections that may differ
+     * between the world that should be rendered and the world the client currently has in that section.
+     * Sections whose fingerprints are known to be the same are skipped without being copied, and are marked as rendered right away.
+     * <br><br>
+     * When any section is compared, the chunk packet of the render world is encoded as well, so the workers can choose to resend the whole chunk.
+     * It's read from the live chunk, so it's only encoded while the render system has main thread time left this tick, or when it's already cached.
+     *
+     * @param chunkRenderSettings the render settings of the player for whom the chunk is updated
+     * @param chunk the chunk to be updated
+     * @param batch the batch sharing the section copies with the other players updated in the same tick
+     * @return the snapshot to diff, or null when nothing has to be diffed
+     */
+    private @Nullable ChunkRenderSnapshot snapshotChunk(ChunkRenderSettings chunkRenderSettings, Chunk chunk, RenderBatch batch) {
+        World world = chunk.getWorld();
+        int chunkX = chunk.getX();
+        int chunkZ = chunk.getZ();
+        long chunkKey = ChunkUtil.getChunkKey(chunkX, chunkZ);
 
-        ServerChunkCache chunkRenderWorldCache = ((CraftWorld) renderWorld).getHandle().getChunkSource();
-        ServerChunkCache previousWorldCache = ((CraftWorld) previousWorld).getHandle().getChunkSource();
-        LevelChunk nmsRenderChunk = chunkRenderWorldCache.getChunk(chunk.getX(), chunk.getZ(), !chunkRenderWorldCache.hasChunk(chunk.getX(), chunk.getZ()));
-        LevelChunk nmsPreviousChunk = previousWorldCache.getChunk(chunk.getX(), chunk.getZ(), !previousWorldCache.hasChunk(chunk.getX(), chunk.getZ()));
+        World renderWorld = chunkRenderSettings.getRenderChunk(world, chunkX, chunkZ);
+        LevelChunk nmsRenderChunk = getLevelChunk(renderWorld, chunkX, chunkZ);
 
-        if(nmsRenderChunk == null || nmsPreviousChunk == null)
-            return packets;
+        if(nmsRenderChunk == null)
+            return null;
 
+        long renderWorldStamp = fingerprintIndex.getStamp(renderWorld);
         LevelChunkSection[] sections = nmsRenderChunk.getSections();
-        LevelChunkSection[] previousSections = nmsPreviousChunk.getSections();
+
+        // Usually the client has a single world in the whole chunk, but a partially sent update can leave several
+        Map<World, LevelChunk> previousChunks = new HashMap<>(2);
+
+        World[] previousWorlds = new World[sections.length];
+        int[] previousSectionCounts = new int[sections.length];
+        long[] previousWorldStamps = new long[sections.length];
+        LevelChunkSection[] sectionCopies = new LevelChunkSection[sections.length];
+        LevelChunkSection[] previousSectionCopies = new LevelChunkSection[sections.length];
+        LightSection[] light = new LightSection[sections.length];
+        LightSection[] previousLight = new LightSection[sections.length];
+        boolean[] compare = new boolean[sections.length];
+        boolean[] unknownFingerprints = new boolean[sections.length];
+        boolean anyCompared = false;
+        boolean biomesDiffer = false;
 
         for (int i = 0; i < sections.length; i++) {
-            LevelChunkSection section = sections[i];
+            World previousWorld = chunkRenderSettings.getClientsideWorld(world, chunkKey, i);
 
-            if (section == null || isSameSection(section, previousSections[i])) {
+            if (previousWorld == renderWorld || sections[i] == null)
                 continue;
-            }
 
-            int sectionY = nmsRenderChunk.getSectionYFromSectionIndex(i);
-            SectionPos sectionPos = SectionPos.of(chunk.getX(), sectionY, chunk.getZ());
+            if (!previousChunks.containsKey(previousWorld))
+                previousChunks.put(previousWorld, getLevelChunk(previousWorld, chunkX, chunkZ));
+
+            LevelChunk nmsPreviousChunk = previousChunks.get(previousWorld);
+
+            if (nmsPreviousChunk == null)
+                continue;
+
+            long fingerprint = fingerprintIndex.getKnownFingerprint(renderWorld, chunkX, chunkZ, i);
+            long previousFingerprint = fingerprintIndex.getKnownFingerprint(previousWorld, chunkX, chunkZ, i);
+
+            LevelChunkSection[] previousSections = nmsPreviousChunk.getSections();
+            boolean hasPreviousSection = i < previousSections.length && previousSections[i] != null;
 
-            packets.add(new MultiBlockPacket(sectionPos, section));
+            // Biomes are compared on their own for every section whose world changes, the blocks can be the same while the biomes differ
+            if (!biomesDiffer)
+                biomesDiffer = !hasPreviousSection || !isSameBiomes(sections[i], previousSections[i]);
+
+            if (fingerprint != SectionFingerprintIndex.UNKNOWN && fingerprint == previousFingerprint) {
+                chunkRenderSettings.setClientsideWorld(world, chunkKey, i, sections.length, renderWorld);
+                continue;
+            }
+
+            previousWorlds[i] = previousWorld;
+            previousSectionCounts[i] = previousSections.length;
+            previousWorldStamps[i] = fingerprintIndex.getStamp(previousWorld);
+            compare[i] = true;
+            unknownFingerprints[i] = fingerprint == SectionFingerprintIndex.UNKNOWN || previousFingerprint == SectionFingerprintIndex.UNKNOWN;
+            sectionCopies[i] = batch.copy(renderWorld, chunkKey, i, sections[i]);
+            light[i] = lightSectionCache.get(renderWorld, chunkX, chunkZ, i, sections.length);
+            anyCompared = true;
+
+            if (hasPreviousSection) {
+                previousSectionCopies[i] = batch.copy(previousWorld, chunkKey, i, previousSections[i]);
+                previousLight[i] = lightSectionCache.get(previousWorld, chunkX, chunkZ, i, previousSections.length);
+            }
         }
 
-        chunkRenderSettings.getClientsideChunks().put(chunk.getChunkKey(), renderWorld);
-        return packets;
+        // The biomes can differ while the fingerprints of every section are the same
+        if(!anyCompared && !biomesDiffer)
+            return null;
+
+        // The biome packet holds the biomes of the whole chunk, it's only encoded when the biomes of any section differ
+        ChunkBiomeData biomes = biomesDiffer ? new ChunkBiomeData(nmsRenderChunk) : null;
+
+        ChunkPacketData chunkData = null;
+        if(anyCompared && (renderLoadMonitor.hasTickBudget() || chunkPacketCache.isCached(renderWorld, chunkX, chunkZ)))
+            chunkData = chunkPacketCache.getIfLoaded(renderWorld, chunkX, chunkZ);
+
+        return new ChunkRenderSnapshot(chunkX, chunkZ, nmsRenderChunk.getMinSectionY(), world, renderWorld, previousWorlds, previousSectionCounts,
+                sectionCopies, previousSectionCopies, light, previousLight, biomes, chunkData, compare, unknownFingerprints, renderWorldStamp, previousWorldStamps, batch);
     }
 
-    private boolean isSameSection(LevelChunkSection section, LevelChunkSection originalSection) {
-        for(int i = 0; i < 4096; i++)
-            if(!section.getStates().get(i).is(originalSection.getStates().get(i).getBlock()))
-                return false;
+    /**
+     * Compares the 4x4x4 biomes of both sections.
+     */
+    private static boolean isSameBiomes(LevelChunkSection section, LevelChunkSection previousSection) {
+        for(int x = 0; x < 4; x++) {
+            for(int y = 0; y < 4; y++) {
+                for(int z = 0; z < 4; z++) {
+                    if(section.getNoiseBiome(x, y, z) != previousSection.getNoiseBiome(x, y, z))
+                        return false;
+                }
+            }
+        }
 
         return true;
     }
 
+    /**
+     * Gets the NMS chunk of the given world, loading it when it isn't loaded yet.
+     */
+    private @Nullable LevelChunk getLevelChunk(World world, int chunkX, int chunkZ) {
+        CompositeWorld compositeWorld = layerCompositor.get(world);
+
+        if(compositeWorld != null)
+            return compositeWorld.loadChunk(chunkX, chunkZ);
+
+        ServerChunkCache chunkCache = ((CraftWorld) world).getHandle().getChunkSource();
+        return chunkCache.getChunk(chunkX, chunkZ, !chunkCache.hasChunk(chunkX, chunkZ));
+    }
+
+    private ChunkRenderSettings getOrCreateSettings(Player player) {
+        return playerRenderSettings.computeIfAbsent(player.getUniqueId(), uuid -> new ChunkRenderSettings(this::updatePacketListeners));
+    }
+
     /**
      * Renders the world as the visualizer world for the given player.
      *
      * @apiNote This does not automatically update the client side chunks that are currently loaded!
+     *          While the player is subscribed to a profile, the profile is rendered instead.
      * @see ChunkRenderingSystem#updateChunks(Player) updateChunks to update the loaded chunks automatically.
      *
      * @param player the player for whom the world is rendered
@@ -276,20 +1038,14 @@ public class ChunkRenderingSystem implements Listener {
      * @param visualizer the visualizer world to render
      */
     public void renderWorldAs(Player player, World world, World visualizer) {
-        ChunkRenderSettings chunkRenderSettings = playerRenderSettings.get(player.getUniqueId());
-
-        if(chunkRenderSettings == null) {
-            playerRenderSettings.put(player.getUniqueId(), new ChunkRenderSettings(world, visualizer));
-            return;
-        }
-
-        chunkRenderSettings.getRenderWorldAs().put(world, visualizer);
+        getOrCreateSettings(player).getPersonalProfile().renderWorldAs(world, visualizer);
     }
 
     /**
      * Renders the specified chunk as the visualizer chunk for the given player.
      *
      * @apiNote This does not automatically update the client side chunks that are currently loaded!
+     *          While the player is subscribed to a profile, the profile is rendered instead.
      * @see ChunkRenderingSystem#updateChunks(Player) updateChunks to update the loaded chunks automatically.
      *
      * @param player the player for whom the chunk is rendered
@@ -297,14 +1053,7 @@ public class ChunkRenderingSystem implements Listener {
      * @param visualizer the visualizer chunk to render
      */
     public void renderChunkAs(Player player, Chunk chunk, Chunk visualizer) {
-        ChunkRenderSettings chunkRenderSettings = playerRenderSettings.get(player.getUniqueId());
-
-        if(chunkRenderSettings == null) {
-            playerRenderSettings.put(player.getUniqueId(), new ChunkRenderSettings(chunk, visualizer));
-            return;
-        }
-
-        chunkRenderSettings.getRenderChunkAs().put(chunk.getChunkKey(), visualizer.getWorld());
+        getOrCreateSettings(player).getPersonalProfile().renderChunkAs(chunk, visualizer);
     }
 
     /**
@@ -316,7 +1065,14 @@ public class ChunkRenderingSystem implements Listener {
      * @param player the player for whom to remove the rendering settings
      */
     public void removeRendering(Player player) {
-        playerRenderSettings.remove(player.getUniqueId());
+        ChunkRenderSettings chunkRenderSettings = playerRenderSettings.get(player.getUniqueId());
+
+        if(chunkRenderSettings == null) {
+            return;
+        }
+
+        // The client side chunks are kept, so a following updateChunks call knows what to revert.
+        chunkRenderSettings.getPersonalProfile().removeRendering();
     }
 
     /**
@@ -339,7 +1095,7 @@ public class ChunkRenderingSystem implements Listener {
             return;
         }
 
-        chunkRenderSettings.getRenderWorldAs().remove(world);
+        chunkRenderSettings.getPersonalProfile().removeWorldRendering(world);
     }
 
     /**
@@ -358,19 +1114,198 @@ public class ChunkRenderingSystem implements Listener {
             return;
         }
 
-        chunkRenderSettings.getRenderChunkAs().remove(chunk.getChunkKey());
+        chunkRenderSettings.getPersonalProfile().removeChunkRendering(chunk);
     }
 
-    private World getRenderWorld(Player player, int chunkX, int chunkZ) {
-        ChunkRenderSettings renderSettings = playerRenderSettings.get(player.getUniqueId());
+    /**
+     * Renders the regions as their visualizer worlds for the player, and updates the loaded chunks in a single pass.
+     *
+     * @param player the player for whom the regions are rendered
+     * @param regions the regions to render
+     */
+    public void applyRegions(Player player, Collection<RenderRegion> regions) {
+        getOrCreateSettings(player).getPersonalProfile().addRegions(regions);
+        updateChunks(player);
+    }
 
-        if(renderSettings == null)
-            return player.getWorld();
+    /**
+     * Removes the regions from the player's rendering, and updates the loaded chunks in a single pass.
+     *
+     * @param player the player whose rendering settings are considered
+     * @param regions the regions to remove
+     */
+    public void removeRegions(Player player, Collection<RenderRegion> regions) {
+        ChunkRenderSettings chunkRenderSettings = playerRenderSettings.get(player.getUniqueId());
+
+        if(chunkRenderSettings == null) {
+            return;
+        }
+
+        chunkRenderSettings.getPersonalProfile().removeRegions(regions);
+        updateChunks(player);
+    }
+
+    /**
+     * Renders the regions as their visualizer worlds in the profile, and updates the loaded chunks of all subscribers in a single pass.
+     *
+     * @param profile the profile in which the regions are rendered
+     * @param regions the regions to render
+     */
+    public void applyRegions(RenderProfile profile, Collection<RenderRegion> regions) {
+        profile.addRegions(regions);
+        updateChunks(profile);
+    }
+
+    /**
+     * Removes the regions from the profile, and updates the loaded chunks of all subscribers in a single pass.
+     *
+     * @param profile the profile whose regions are removed
+     * @param regions the regions to remove
+     */
+    public void removeRegions(RenderProfile profile, Collection<RenderRegion> regions) {
+        profile.removeRegions(regions);
+        updateChunks(profile);
+    }
+
+    /**
+     * Creates a named render profile, which can be shared by many players.
+     *
+     * @param name the name of the profile
+     * @return the new profile
+     * @throws IllegalStateException when a profile with the name already exists
+     */
+    public RenderProfile createProfile(String name) {
+        if(profiles.containsKey(name))
+            throw new IllegalStateException(String.format("Render profile %s already exists!", name));
 
-        return renderSettings.getRenderChunk(player.getWorld(), chunkX, chunkZ);
+        RenderProfile profile = new RenderProfile(name, this::updatePacketListeners);
+        profiles.put(name, profile);
+
+        return profile;
+    }
+
+    /**
+     * @param name the name of the profile
+     * @return the profile with the name, or null when it doesn't exist
+     */
+    public @Nullable RenderProfile getProfile(String name) {
+        return profiles.get(name);
+    }
+
+    /**
+     * Removes a named render profile, all subscribers fall back to their personal profile.
+     *
+     * @apiNote This does not automatically update the client side chunks that are currently loaded!
+     *
+     * @param profile the profile to remove
+     */
+    public void removeProfile(RenderProfile profile) {
+        profiles.remove(profile.getName());
+
+        for(UUID uuid : List.copyOf(profile.getSubscribers())) {
+            ChunkRenderSettings chunkRenderSettings = playerRenderSettings.get(uuid);
+
+            if(chunkRenderSettings != null && chunkRenderSettings.getSharedProfile() == profile)
+                chunkRenderSettings.setSharedProfile(null);
+
+            profile.removeSubscriber(uuid);
+        }
+
+        updatePacketListeners();
+    }
+
+    /**
+     * Subscribes the player to the profile, rendering the profile instead of the player's personal mappings.
+     * A player can only be subscribed to one profile at a time.
+     *
+     * @apiNote This does not automatically update the client side chunks that are currently loaded!
+     * @see ChunkRenderingSystem#updateChunks(RenderProfile) updateChunks to update the loaded chunks of all subscribers.
+     *
+     * @param player the player to subscribe
+     * @param profile the profile to render for the player
+     */
+    public void subscribe(Player player, RenderProfile profile) {
+        ChunkRenderSettings chunkRenderSettings = getOrCreateSettings(player);
+        RenderProfile previousProfile = chunkRenderSettings.getSharedProfile();
+
+        if(previousProfile != null)
+            previousProfile.removeSubscriber(player.getUniqueId());
+
+        profile.addSubscriber(player.getUniqueId());
+        chunkRenderSettings.setSharedProfile(profile);
+        updatePacketListeners();
+    }
+
+    /**
+     * Unsubscribes the player from their profile, rendering their personal mappings again.
+     *
+     * @apiNote This does not automatically update the client side chunks that are currently loaded!
+     *
+     * @param player the player to unsubscribe
+     */
+    public void unsubscribe(Player player) {
+        ChunkRenderSettings chunkRenderSettings = playerRenderSettings.get(player.getUniqueId());
+
+        if(chunkRenderSettings == null || chunkRenderSettings.getSharedProfile() == null)
+            return;
+
+        chunkRenderSettings.getSharedProfile().removeSubscriber(player.getUniqueId());
+        chunkRenderSettings.setSharedProfile(null);
+        updatePacketListeners();
+    }
+
+    /**
+     * Creates a world that is composited from a stack of layer worlds, air in a layer shows the layers below it.
+     * The composite world can be rendered like any other visualizer world, for a player, a profile or a region.
+     * <br><br>
+     * For example a base map with a small decoration overlay world on top, which only has to contain the decorations:
+     * {@code renderWorldAs(player, world, createCompositeWorld("winter", List.of(world, decorations)).getWorld())}
+     *
+     * @param name the name of the composite world
+     * @param layers the layer worlds, the base layer first, which all need the same height
+     * @return the new composite world
+     * @throws IllegalStateException when a world with the name already exists
+     * @throws IllegalArgumentException when the layers don't have the same height, or a layer is a composite world itself
+     */
+    public CompositeWorld createCompositeWorld(String name, List<World> layers) {
+        return layerCompositor.create(name, layers);
     }
 
-    private ChunkPacket getChunkPacket(Player player, int chunkX, int chunkZ) {
-        return new ChunkPacket(chunkX, chunkZ, getRenderWorld(player, chunkX, chunkZ));
+    /**
+     * @param name the name of the composite world
+     * @return the composite world with the name, or null when it doesn't exist
+     */
+    public @Nullable CompositeWorld getCompositeWorld(String name) {
+        return layerCompositor.get(name);
+    }
+
+    /**
+     * Unloads a composite world and deletes its files.
+     *
+     * @apiNote Remove all mappings to the composite world and update the chunks of those players first!
+     *
+     * @param compositeWorld the composite world to remove
+     */
+    public void removeCompositeWorld(CompositeWorld compositeWorld) {
+        layerCompositor.remove(compositeWorld);
+    }
+
+    private static class PendingRefresh {
+
+        private final Player player;
+        private final ChunkRenderSettings chunkRenderSettings;
+        private final RenderBatch batch;
+
+        // The chunks that still have to be encoded, in the order they're encoded
+        private final LongArrayFIFOQueue chunks = new LongArrayFIFOQueue();
+        private final LongSet loadingChunks = new LongOpenHashSet();
+        private final List<ChunkRefresh> refreshes = new ArrayList<>();
+        private int pendingLoads = 0;
+
+        private PendingRefresh(Player player, ChunkRenderSettings chunkRenderSettings, RenderBatch batch) {
+            this.player = player;
+            this.chunkRenderSettings = chunkRenderSettings;
+            this.batch = batch;
+        }
     }
 }
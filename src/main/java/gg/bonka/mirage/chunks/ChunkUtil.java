@@ -2,7 +2,22 @@ package gg.bonka.mirage.chunks;
 
 public final class ChunkUtil {
 
+    /**
+     * Packs chunk coordinates into a single key, the same key as {@link org.bukkit.Chunk#getChunkKey()}.
+     *
+     * @param x the chunk x coordinate
+     * @param z the chunk z coordinate
+     * @return the key of the chunk
+     */
     public static long getChunkKey(int x, int z) {
-        return ((long)x >> 4) & 4294967295L | (((long)z >> 4) & 4294967295L) << 32;
+        return (long) x & 0xFFFFFFFFL | ((long) z & 0xFFFFFFFFL) << 32;
+    }
+
+    public static int getChunkX(long chunkKey) {
+        return (int) chunkKey;
+    }
+
+    public static int getChunkZ(long chunkKey) {
+        return (int) (chunkKey >>> 32);
     }
 }
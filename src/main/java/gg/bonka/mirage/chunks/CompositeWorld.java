@@ -0,0 +1,428 @@
+package gg.bonka.mirage.chunks;
+
+import ca.spottedleaf.moonrise.patches.starlight.light.StarLightLightingProvider;
+import gg.bonka.mirage.Mirage;
+import lombok.Getter;
+import net.kyori.adventure.util.TriState;
+import net.minecraft.core.BlockPos;
+import net.minecraft.server.level.ServerChunkCache;
+import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.ChunkAccess;
+import net.minecraft.world.level.chunk.LevelChunk;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import net.minecraft.world.level.levelgen.Heightmap;
+import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
+import org.bukkit.GameRule;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.WorldCreator;
+import org.bukkit.craftbukkit.CraftWorld;
+import org.bukkit.craftbukkit.generator.CraftChunkData;
+import org.bukkit.generator.ChunkGenerator;
+import org.bukkit.generator.WorldInfo;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * A world whose chunks are composited from a stack of layer worlds, like a base map with a small decoration overlay on top.
+ * Air in a layer is transparent, every other block covers the blocks of the layers below it.
+ * <br><br>
+ * The composited chunks live in a world of their own, which is never saved. It can be rendered like any other visualizer world,
+ * for a player, a profile or a region, so all players rendering the same layers share the composited chunks and the packets encoded from them.
+ * A chunk is composited once when it's generated, and the server lights it like a normal chunk.
+ * Chunks that are loaded by anything else are generated empty, and are composited from copies of the layer sections afterward.
+ * Afterward only the blocks that change in a layer are composited again, see {@link LayerCompositor}.
+ * <br><br>
+ * Block entities of the layers, like the text of signs, aren't composited.
+ */
+public class CompositeWorld {
+
+    @Getter
+    private final World world;
+
+    // The base layer first, every next layer is drawn on top of the previous ones
+    @Getter
+    private final List<World> layers;
+
+    // The layer sections copied on the main thread, for the chunks that are about to be generated
+    private final Map<Long, LevelChunkSection[][]> preparedChunks = new ConcurrentHashMap<>();
+
+    // Chunks the generator composited, every other loaded chunk still has to be composited
+    private final Set<Long> generatedChunks = ConcurrentHashMap.newKeySet();
+
+    // The amount of composites in progress per chunk, from copying the layer sections until the result is in the loaded chunk.
+    // Only used on the main thread.
+    private final Map<Long, Integer> compositingChunks = new HashMap<>();
+
+    /**
+     * Creates the world holding the composited chunks.
+     *
+     * @param name the name of the composite world
+     * @param layers the layer worlds, the base layer first
+     * @throws IllegalArgumentException when there are no layers, or the layers don't have the same height
+     */
+    CompositeWorld(String name, List<World> layers) {
+        if(layers.isEmpty())
+            throw new IllegalArgumentException("A composite world needs at least one layer!");
+
+        World base = layers.getFirst();
+
+        for(World layer : layers) {
+            if(layer.getMinHeight() != base.getMinHeight() || layer.getMaxHeight() != base.getMaxHeight())
+                throw new IllegalArgumentException(String.format("Layer %s doesn't have the same height as %s!", layer.getName(), base.getName()));
+        }
+
+        this.layers = List.copyOf(layers);
+
+        World created = new WorldCreator(name)
+                .environment(base.getEnvironment())
+                .generator(new Generator())
+                .keepSpawnLoaded(TriState.FALSE)
+                .createWorld();
+
+        if(created == null)
+            throw new IllegalStateException(String.format("Composite world %s could not be created!", name));
+
+        if(created.getMinHeight() != base.getMinHeight() || created.getMaxHeight() != base.getMaxHeight())
+            throw new IllegalArgumentException(String.format("Composite world %s doesn't have the same height as its layers!", name));
+
+        // Nothing may change the composited chunks except the layers
+        created.setAutoSave(false);
+        created.setGameRule(GameRule.RANDOM_TICK_SPEED, 0);
+        created.setGameRule(GameRule.DO_FIRE_TICK, false);
+        created.setGameRule(GameRule.DO_MOB_SPAWNING, false);
+
+        this.world = created;
+    }
+
+    public String getName() {
+        return world.getName();
+    }
+
+    /**
+     * @param world the world to check
+     * @return true if the world is one of the layers
+     */
+    public boolean isLayer(World world) {
+        return layers.contains(world);
+    }
+
+    /**
+     * Loads a chunk asynchronously, loading the chunks of the layers first so it's composited while it's generated.
+     * Must be called on the main thread.
+     *
+     * @param x the x-coordinate of the chunk
+     * @param z the z-coordinate of the chunk
+     * @return the future completing on the main thread with the composited chunk
+     */
+    CompletableFuture<Chunk> loadChunkAsync(int x, int z) {
+        if(world.isChunkLoaded(x, z))
+            return CompletableFuture.completedFuture(world.getChunkAt(x, z));
+
+        CompletableFuture<?>[] layerChunks = layers.stream().map(layer -> layer.getChunkAtAsync(x, z)).toArray(CompletableFuture[]::new);
+        long chunkKey = ChunkUtil.getChunkKey(x, z);
+
+        // Paper completes the futures on the main thread, so the layer sections can be copied safely
+        return CompletableFuture.allOf(layerChunks).thenCompose(loaded -> {
+            if(world.isChunkLoaded(x, z))
+                return CompletableFuture.completedFuture(world.getChunkAt(x, z));
+
+            startCompositing(chunkKey);
+            preparedChunks.put(chunkKey, copyLayerSections(x, z));
+
+            return world.getChunkAtAsync(x, z).whenComplete((chunk, throwable) -> {
+                preparedChunks.remove(chunkKey);
+                finishCompositing(chunkKey);
+            });
+        });
+    }
+
+    /**
+     * Loads a chunk, loading the chunks of the layers first so it's composited while it's generated.
+     * Must be called on the main thread.
+     *
+     * @param x the x-coordinate of the chunk
+     * @param z the z-coordinate of the chunk
+     * @return the composited chunk, or null when it could not be loaded
+     */
+    @Nullable LevelChunk loadChunk(int x, int z) {
+        ServerChunkCache chunkCache = ((CraftWorld) world).getHandle().getChunkSource();
+
+        if(chunkCache.hasChunk(x, z))
+            return chunkCache.getChunkNow(x, z);
+
+        for(World layer : layers)
+            getLayerChunk(layer, x, z);
+
+        long chunkKey = ChunkUtil.getChunkKey(x, z);
+        startCompositing(chunkKey);
+        preparedChunks.put(chunkKey, copyLayerSections(x, z));
+
+        try {
+            return chunkCache.getChunk(x, z, true);
+        } finally {
+            preparedChunks.remove(chunkKey);
+            finishCompositing(chunkKey);
+        }
+    }
+
+    /**
+     * Composites a loaded chunk that wasn't composited while it was generated.
+     * The chunks of the layers are loaded asynchronously, and their sections are copied on the main thread and composited on another thread.
+     * The composited sections then replace the sections of the chunk on the main thread, and the chunk is lit again as a whole.
+     * Must be called on the main thread.
+     *
+     * @param x the x-coordinate of the chunk
+     * @param z the z-coordinate of the chunk
+     * @return the future completing on the main thread, with true if the chunk was composited or false if it was unloaded in the meantime
+     */
+    CompletableFuture<Boolean> compositeLoadedChunk(int x, int z) {
+        LevelChunk chunk = ((CraftWorld) world).getHandle().getChunkSource().getChunkNow(x, z);
+
+        if(chunk == null)
+            return CompletableFuture.completedFuture(false);
+
+        long chunkKey = ChunkUtil.getChunkKey(x, z);
+        startCompositing(chunkKey);
+
+        CompletableFuture<?>[] layerChunks = layers.stream().map(layer -> layer.getChunkAtAsync(x, z)).toArray(CompletableFuture[]::new);
+
+        Executor mainThread = Bukkit.getScheduler().getMainThreadExecutor(Mirage.getInstance());
+
+        // Paper completes the futures on the main thread, so the sections can be copied safely
+        return CompletableFuture.allOf(layerChunks)
+                .thenApply(loaded -> new CopiedChunk(copyLayerSections(x, z), copySections(chunk)))
+                .thenApplyAsync(copied -> compositeSections(copied.layerSections(), copied.sections()))
+                .thenApplyAsync(sections -> replaceSections(chunk, sections), mainThread)
+                .whenCompleteAsync((composited, throwable) -> finishCompositing(chunkKey), mainThread);
+    }
+
+    private static LevelChunkSection[] copySections(LevelChunk chunk) {
+        LevelChunkSection[] sections = new LevelChunkSection[chunk.getSectionsCount()];
+
+        for(int sectionIndex = 0; sectionIndex < sections.length; sectionIndex++)
+            sections[sectionIndex] = chunk.getSection(sectionIndex).copy();
+
+        return sections;
+    }
+
+    /**
+     * Replaces the sections of the chunk with the composited ones, and updates its heightmaps and light once for the whole chunk.
+     *
+     * @return true if the sections were replaced, false if the chunk was unloaded in the meantime
+     */
+    private boolean replaceSections(LevelChunk chunk, LevelChunkSection[] sections) {
+        ServerChunkCache chunkCache = ((CraftWorld) world).getHandle().getChunkSource();
+
+        if(chunkCache.getChunkNow(chunk.getPos().x, chunk.getPos().z) != chunk)
+            return false;
+
+        System.arraycopy(sections, 0, chunk.getSections(), 0, sections.length);
+
+        Set<Heightmap.Types> heightmapTypes = EnumSet.noneOf(Heightmap.Types.class);
+        for(Map.Entry<Heightmap.Types, Heightmap> heightmap : chunk.getHeightmaps())
+            heightmapTypes.add(heightmap.getKey());
+
+        Heightmap.primeHeightmaps(chunk, heightmapTypes);
+
+        ((StarLightLightingProvider) chunkCache.getLightEngine()).starlight$serverRelightChunks(List.of(chunk.getPos()), pos -> {}, count -> {});
+        return true;
+    }
+
+    /**
+     * Checks whether a composite of the chunk is in progress, changes in its layers during that time may not be part of the result.
+     *
+     * @param chunkKey the key of the chunk
+     * @return true if the chunk is being composited
+     */
+    boolean isCompositing(long chunkKey) {
+        return compositingChunks.containsKey(chunkKey);
+    }
+
+    private void startCompositing(long chunkKey) {
+        compositingChunks.merge(chunkKey, 1, Integer::sum);
+    }
+
+    private void finishCompositing(long chunkKey) {
+        compositingChunks.computeIfPresent(chunkKey, (key, count) -> count > 1 ? count - 1 : null);
+    }
+
+    private LevelChunkSection[][] copyLayerSections(int x, int z) {
+        LevelChunkSection[][] sections = new LevelChunkSection[layers.size()][];
+
+        for(int i = 0; i < layers.size(); i++) {
+            LevelChunk chunk = ((CraftWorld) layers.get(i)).getHandle().getChunkSource().getChunkNow(x, z);
+
+            if(chunk == null)
+                continue;
+
+            sections[i] = new LevelChunkSection[chunk.getSectionsCount()];
+
+            for(int sectionIndex = 0; sectionIndex < sections[i].length; sectionIndex++) {
+                // Overlay sections with only air don't add anything
+                LevelChunkSection section = chunk.getSection(sectionIndex);
+                sections[i][sectionIndex] = i == 0 || !section.hasOnlyAir() ? section.copy() : null;
+            }
+        }
+
+        return sections;
+    }
+
+    /**
+     * Checks whether the chunk was composited while it was generated,
+     * which is only done for chunks loaded through {@link #loadChunk(int, int)} or {@link #loadChunkAsync(int, int)}.
+     *
+     * @param chunkKey the key of the chunk
+     * @return true if the chunk was composited, false if it still has to be composited with {@link #compositeLoadedChunk(int, int)}
+     */
+    boolean takeGenerated(long chunkKey) {
+        return generatedChunks.remove(chunkKey);
+    }
+
+    /**
+     * Composites a single block of a loaded chunk again from the layers, loading the chunks of the layers when they aren't loaded.
+     * The light and heightmaps of the chunk are updated with it. Must be called on the main thread.
+     *
+     * @param chunk the composited chunk
+     * @param x the x-coordinate of the block
+     * @param y the y-coordinate of the block
+     * @param z the z-coordinate of the block
+     * @return true if the block changed
+     */
+    boolean recompositeBlock(LevelChunk chunk, int x, int y, int z) {
+        int sectionIndex = chunk.getSectionIndex(y);
+
+        if(sectionIndex < 0 || sectionIndex >= chunk.getSectionsCount())
+            return false;
+
+        BlockPos pos = new BlockPos(x, y, z);
+        BlockState state = Blocks.AIR.defaultBlockState();
+
+        // The topmost layer with a block at the position wins
+        for(int i = layers.size() - 1; i >= 0; i--) {
+            LevelChunk layerChunk = getLayerChunk(layers.get(i), x >> 4, z >> 4);
+
+            if(layerChunk == null)
+                continue;
+
+            state = layerChunk.getBlockState(pos);
+
+            if(!state.isAir())
+                break;
+        }
+
+        return setBlock(chunk, chunk.getSection(sectionIndex), pos, state);
+    }
+
+    private static boolean setBlock(LevelChunk chunk, LevelChunkSection section, BlockPos pos, BlockState state) {
+        int x = pos.getX() & 15;
+        int y = pos.getY() & 15;
+        int z = pos.getZ() & 15;
+
+        if(section.getBlockState(x, y, z) == state)
+            return false;
+
+        // Written into the section directly, so no block updates or block entities are triggered in the composite world
+        section.setBlockState(x, y, z, state, false);
+
+        for(Map.Entry<Heightmap.Types, Heightmap> heightmap : chunk.getHeightmaps())
+            heightmap.getValue().update(x, pos.getY(), z, state);
+
+        chunk.getLevel().getChunkSource().getLightEngine().checkBlock(pos);
+        return true;
+    }
+
+    // The sections of a loaded chunk and of its layers, copied on the main thread
+    private record CopiedChunk(LevelChunkSection[][] layerSections, LevelChunkSection[] sections) {}
+
+    /**
+     * Gets the NMS chunk of a layer, loading it when it isn't loaded yet.
+     */
+    private static @Nullable LevelChunk getLayerChunk(World layer, int chunkX, int chunkZ) {
+        ServerChunkCache chunkCache = ((CraftWorld) layer).getHandle().getChunkSource();
+        return chunkCache.getChunk(chunkX, chunkZ, !chunkCache.hasChunk(chunkX, chunkZ));
+    }
+
+    /**
+     * Composites the copied sections of all layers of a chunk, like the generator does.
+     *
+     * @param layerSections the copied sections of every layer, the base layer first, null for layers that weren't loaded
+     * @param sections the sections to composite into, used where the base layer has no sections
+     * @return the composited sections
+     */
+    private static LevelChunkSection[] compositeSections(LevelChunkSection[][] layerSections, LevelChunkSection[] sections) {
+        for(int sectionIndex = 0; sectionIndex < sections.length; sectionIndex++) {
+            // A missing base layer leaves the given section as the starting point
+            if(layerSections[0] != null)
+                sections[sectionIndex] = layerSections[0][sectionIndex];
+
+            List<LevelChunkSection> overlays = new ArrayList<>();
+
+            for(int layer = 1; layer < layerSections.length; layer++) {
+                if(layerSections[layer] != null && layerSections[layer][sectionIndex] != null)
+                    overlays.add(layerSections[layer][sectionIndex]);
+            }
+
+            compositeSection(sections[sectionIndex], overlays);
+        }
+
+        return sections;
+    }
+
+    /**
+     * Composites the sections of the layers on top of each other.
+     *
+     * @param target the section to composite into, which already holds the base layer
+     * @param overlays the sections of the layers above the base layer, from the bottom up
+     */
+    private static void compositeSection(LevelChunkSection target, List<LevelChunkSection> overlays) {
+        for(LevelChunkSection overlay : overlays) {
+            for(int y = 0; y < 16; y++) {
+                for(int z = 0; z < 16; z++) {
+                    for(int x = 0; x < 16; x++) {
+                        BlockState state = overlay.getBlockState(x, y, z);
+
+                        if(!state.isAir())
+                            target.setBlockState(x, y, z, state, false);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Generates the composited chunks from the layer sections that were copied on the main thread.
+     * Chunks without copied sections are generated empty, and composited once they're loaded.
+     */
+    private class Generator extends ChunkGenerator {
+
+        @Override
+        public void generateNoise(@NotNull WorldInfo worldInfo, @NotNull Random random, int chunkX, int chunkZ, @NotNull ChunkData chunkData) {
+            long chunkKey = ChunkUtil.getChunkKey(chunkX, chunkZ);
+            LevelChunkSection[][] layerSections = preparedChunks.remove(chunkKey);
+
+            if(layerSections == null)
+                return;
+
+            ChunkAccess chunk = ((CraftChunkData) chunkData).getHandle();
+            compositeSections(layerSections, chunk.getSections());
+
+            // A layer that unloaded before its sections were copied is composited again once the chunk is loaded
+            if(Arrays.stream(layerSections).allMatch(Objects::nonNull))
+                generatedChunks.add(chunkKey);
+        }
+
+        @Override
+        public @Nullable Location getFixedSpawnLocation(@NotNull World world, @NotNull Random random) {
+            // Searching a spawn would generate chunks before any layer is prepared
+            return new Location(world, 0, world.getMinHeight(), 0);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package gg.bonka.mirage.chunks;
+
+import com.comphenix.protocol.ProtocolLibrary;
+import gg.bonka.mirage.Mirage;
+import gg.bonka.mirage.chunks.cache.ChunkPacketCache;
+import gg.bonka.mirage.chunks.packets.ChunkPacket;
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends remapped chunk packets of which the visualizer chunk isn't loaded yet.
+ * <br><br>
+ * The original packet is held back while the visualizer chunk is loaded through Paper's async chunk API,
+ * and the remapped packet is sent once the chunk is ready. The packet threads never wait on disk I/O or world generation.
+ * When loading takes longer than the timeout, the real chunk is sent instead, so the client never misses a chunk.
+ */
+public class DeferredChunkSender {
+
+    private final ChunkPacketCache chunkPacketCache;
+    private final LayerCompositor layerCompositor;
+    private final int timeoutTicks;
+
+    private final Map<PendingKey, PendingChunk> pending = new ConcurrentHashMap<>();
+
+    private final LongAdder deferredSends = new LongAdder();
+    private final LongAdder timedOutSends = new LongAdder();
+
+    /**
+     * @param chunkPacketCache the cache to get the encoded chunks from
+     * @param layerCompositor the compositor that loads the chunks of composite worlds
+     * @param timeoutTicks the amount of ticks after which the real chunk is sent instead
+     */
+    DeferredChunkSender(ChunkPacketCache chunkPacketCache, LayerCompositor layerCompositor, int timeoutTicks) {
+        this.chunkPacketCache = chunkPacketCache;
+        this.layerCompositor = layerCompositor;
+        this.timeoutTicks = timeoutTicks;
+    }
+
+    /**
+     * Starts loading the visualizer chunk, and sends it to the player once it's loaded.
+     * The caller should cancel the original packet, can be called from any thread.
+     *
+     * @param player the player to send the chunk to
+     * @param renderSettings the render settings of the player
+     * @param world the real world of the chunk
+     * @param renderWorld the world the chunk should be rendered as
+     * @param x the x-coordinate of the chunk
+     * @param z the z-coordinate of the chunk
+     */
+    void defer(Player player, ChunkRenderSettings renderSettings, World world, World renderWorld, int x, int z) {
+        PendingKey key = new PendingKey(player.getUniqueId(), ChunkUtil.getChunkKey(x, z));
+        PendingChunk chunk = new PendingChunk(player, renderSettings, world, x, z);
+
+        pending.put(key, chunk);
+        deferredSends.increment();
+
+        Bukkit.getScheduler().runTask(Mirage.getInstance(), () -> {
+            if(pending.get(key) != chunk)
+                return;
+
+            chunk.timeoutTask = Bukkit.getScheduler().runTaskLater(Mirage.getInstance(), () -> send(key, chunk, true), timeoutTicks);
+
+            // Paper completes the future on the main thread
+            layerCompositor.getChunkAtAsync(renderWorld, x, z).whenComplete((loaded, throwable) -> send(key, chunk, false));
+        });
+    }
+
+    /**
+     * Stops waiting for a chunk the client unloaded before it was sent, can be called from any thread.
+     *
+     * @param playerId the player the chunk was deferred for
+     * @param chunkKey the key of the chunk
+     */
+    void cancel(UUID playerId, long chunkKey) {
+        PendingChunk chunk = pending.remove(new PendingKey(playerId, chunkKey));
+
+        if(chunk != null && chunk.timeoutTask != null)
+            chunk.timeoutTask.cancel();
+    }
+
+    /**
+     * Stops waiting for all chunks of a player, used when the player quits or changes worlds.
+     *
+     * @param playerId the player to stop waiting for
+     */
+    void cancelAll(UUID playerId) {
+        pending.entrySet().removeIf(entry -> {
+            if(!entry.getKey().playerId().equals(playerId))
+                return false;
+
+            if(entry.getValue().timeoutTask != null)
+                entry.getValue().timeoutTask.cancel();
+
+            return true;
+        });
+    }
+
+    private void send(PendingKey key, PendingChunk chunk, boolean timedOut) {
+        if(!pending.remove(key, chunk))
+            return;
+
+        if(chunk.timeoutTask != null)
+            chunk.timeoutTask.cancel();
+
+        Player player = chunk.player;
+
+        if(!player.isOnline() || player.getWorld() != chunk.world)
+            return;
+
+        // The mapping could have changed while the chunk was loading
+        World renderWorld = timedOut ? chunk.world : chunk.renderSettings.getRenderChunk(chunk.world, chunk.x, chunk.z);
+        ChunkPacket chunkPacket = new ChunkPacket(chunk.x, chunk.z, renderWorld, chunkPacketCache.getIfLoaded(renderWorld, chunk.x, chunk.z));
+
+        if(!chunkPacket.isValid() && renderWorld != chunk.world) {
+            timedOut = true;
+            renderWorld = chunk.world;
+            chunkPacket = new ChunkPacket(chunk.x, chunk.z, renderWorld, chunkPacketCache.getIfLoaded(renderWorld, chunk.x, chunk.z));
+        }
+
+        if(!chunkPacket.isValid())
+            return;
+
+        if(timedOut)
+            timedOutSends.increment();
+
+        // Sent without packet listeners, the packet already holds the chunk that should be rendered
+        ProtocolLibrary.getProtocolManager().sendServerPacket(player, chunkPacket, false);
+        chunk.renderSettings.setClientsideChunk(chunk.world, key.chunkKey(), renderWorld);
+    }
+
+    /**
+     * @return the amount of chunks that are currently waiting for their visualizer chunk to load
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * @return the amount of chunk packets that were held back to load their visualizer chunk
+     */
+    public long getDeferredSends() {
+        return deferredSends.sum();
+    }
+
+    /**
+     * @return the amount of held back chunks that were sent as the real chunk, because loading took too long
+     */
+    public long getTimedOutSends() {
+        return timedOutSends.sum();
+    }
+
+    private record PendingKey(UUID playerId, long chunkKey) {}
+
+    private static class PendingChunk {
+
+        private final Player player;
+        private final ChunkRenderSettings renderSettings;
+        private final World world;
+        private final int x;
+        private final int z;
+
+        // Cancelled from the packet threads when the client unloads the chunk
+        private volatile BukkitTask timeoutTask;
+
+        private PendingChunk(Player player, ChunkRenderSettings renderSettings, World world, int x, int z) {
+            this.player = player;
+            this.renderSettings = renderSettings;
+            this.world = world;
+            this.x = x;
+            this.z = z;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package gg.bonka.mirage.chunks;
+
+import java.util.Locale;
+
+/**
+ * How the chunks of a player are refreshed when realtime world loading is disabled.
+ */
+public enum FullRefreshMode {
+
+    /**
+     * Resends every affected chunk as a chunk packet through the paced render queue, without changing dimensions.
+     */
+    CHUNK_PACKETS,
+
+    /**
+     * Teleports the player to another world and back, so the client reloads every chunk and entity behind a loading screen.
+     * Falls back to {@link #CHUNK_PACKETS} when the server only has a single world.
+     */
+    RESPAWN;
+
+    /**
+     * @param value the value in the config, like "chunk-packets"
+     * @return the refresh mode
+     * @throws IllegalArgumentException when the value isn't a refresh mode
+     */
+    public static FullRefreshMode fromConfig(String value) {
+        return valueOf(value.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+    }
+}
@@ -0,0 +1,247 @@
+package gg.bonka.mirage.chunks;
+
+import gg.bonka.mirage.Mirage;
+import gg.bonka.mirage.misc.ConsoleLogger;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import lombok.Getter;
+import net.minecraft.core.BlockPos;
+import net.minecraft.world.level.chunk.LevelChunk;
+import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
+import org.bukkit.World;
+import org.bukkit.craftbukkit.CraftWorld;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.Listener;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
+import org.bukkit.scheduler.BukkitRunnable;
+import org.codehaus.plexus.util.FileUtils;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Owns the {@link CompositeWorld}s, and keeps their composited chunks up to date with their layers.
+ * <br><br>
+ * Every loaded composited chunk is a cache of its layers. Block changes in a layer are collected,
+ * and once per tick only the changed blocks of the loaded composited chunks are composited again.
+ * The changes are reported to the {@link BlockChangeTracker} as changes of the composite world,
+ * so the caches of the composite world are invalidated and players rendering it receive them, like with any other visualizer.
+ * <br><br>
+ * Composited chunks are never saved, a chunk that is loaded again is composited from the current layers.
+ * This class is only used on the main thread.
+ */
+public class LayerCompositor extends BukkitRunnable implements Listener {
+
+    private final BlockChangeTracker blockChangeTracker;
+
+    private final Map<String, CompositeWorld> compositeWorlds = new HashMap<>();
+    private final Map<World, CompositeWorld> compositeWorldsByWorld = new HashMap<>();
+
+    // The changed block positions per composite world, composited again with the next tick once the change is applied,
+    // or once the chunk is done compositing when it was still being composited
+    private final Map<CompositeWorld, LongSet> changes = new HashMap<>();
+
+    @Getter
+    private long totalCompositedChunks;
+
+    @Getter
+    private long totalRecompositedBlocks;
+
+    /**
+     * @param blockChangeTracker the tracker to report the changes of the composite worlds to
+     */
+    LayerCompositor(BlockChangeTracker blockChangeTracker) {
+        this.blockChangeTracker = blockChangeTracker;
+
+        Bukkit.getPluginManager().registerEvents(this, Mirage.getInstance());
+    }
+
+    /**
+     * Creates a composite world from the given layers.
+     *
+     * @param name the name of the composite world
+     * @param layers the layer worlds, the base layer first
+     * @return the new composite world
+     * @throws IllegalStateException when a world with the name already exists
+     * @throws IllegalArgumentException when a layer is a composite world itself
+     */
+    CompositeWorld create(String name, List<World> layers) {
+        if(compositeWorlds.containsKey(name) || Bukkit.getWorld(name) != null)
+            throw new IllegalStateException(String.format("World %s already exists!", name));
+
+        // The changes of a composite world are reported while its layers are composited, so they can't be layers themselves
+        for(World layer : layers) {
+            if(compositeWorldsByWorld.containsKey(layer))
+                throw new IllegalArgumentException(String.format("Composite world %s can't be used as a layer!", layer.getName()));
+        }
+
+        CompositeWorld compositeWorld = new CompositeWorld(name, layers);
+        compositeWorlds.put(name, compositeWorld);
+        compositeWorldsByWorld.put(compositeWorld.getWorld(), compositeWorld);
+
+        return compositeWorld;
+    }
+
+    /**
+     * @param name the name of the composite world
+     * @return the composite world with the name, or null when it doesn't exist
+     */
+    @Nullable CompositeWorld get(String name) {
+        return compositeWorlds.get(name);
+    }
+
+    /**
+     * @param world the world holding the composited chunks
+     * @return the composite world, or null when the world isn't a composite world
+     */
+    @Nullable CompositeWorld get(World world) {
+        return compositeWorldsByWorld.get(world);
+    }
+
+    /**
+     * Unloads the composite world and deletes its files.
+     *
+     * @param compositeWorld the composite world to remove
+     */
+    void remove(CompositeWorld compositeWorld) {
+        compositeWorlds.remove(compositeWorld.getName());
+        compositeWorldsByWorld.remove(compositeWorld.getWorld());
+        changes.remove(compositeWorld);
+
+        World world = compositeWorld.getWorld();
+
+        if(!Bukkit.unloadWorld(world, false)) {
+            ConsoleLogger.error(String.format("Composite world %s could not be unloaded!", world.getName()));
+            return;
+        }
+
+        try {
+            FileUtils.deleteDirectory(world.getWorldFolder());
+        } catch (IOException e) {
+            ConsoleLogger.error(String.format("Failed to delete the files of composite world %s: %s", world.getName(), e.getMessage()));
+        }
+    }
+
+    /**
+     * Removes all composite worlds, should only be called when Mirage gets disabled.
+     */
+    void shutdown() {
+        for(CompositeWorld compositeWorld : List.copyOf(compositeWorlds.values()))
+            remove(compositeWorld);
+    }
+
+    public Collection<CompositeWorld> getCompositeWorlds() {
+        return Collections.unmodifiableCollection(compositeWorlds.values());
+    }
+
+    /**
+     * Loads a chunk asynchronously. Chunks of composite worlds are composited while they're generated.
+     *
+     * @param world the world to load the chunk of
+     * @param x the x-coordinate of the chunk
+     * @param z the z-coordinate of the chunk
+     * @return the future completing on the main thread with the loaded chunk
+     */
+    CompletableFuture<Chunk> getChunkAtAsync(World world, int x, int z) {
+        CompositeWorld compositeWorld = compositeWorldsByWorld.get(world);
+        return compositeWorld == null ? world.getChunkAtAsync(x, z) : compositeWorld.loadChunkAsync(x, z);
+    }
+
+    /**
+     * Records a changed block, the composite worlds it's a layer of are updated with the next tick.
+     *
+     * @param world the world the block is in
+     * @param x the x-coordinate of the block
+     * @param y the y-coordinate of the block
+     * @param z the z-coordinate of the block
+     */
+    public void recordChange(World world, int x, int y, int z) {
+        long chunkKey = ChunkUtil.getChunkKey(x >> 4, z >> 4);
+
+        for(CompositeWorld compositeWorld : compositeWorlds.values()) {
+            if(!compositeWorld.isLayer(world))
+                continue;
+
+            // Unloaded chunks are composited from the current layers once they're loaded,
+            // but a chunk that is being composited may have copied the layers before this change.
+            if(compositeWorld.getWorld().isChunkLoaded(x >> 4, z >> 4) || compositeWorld.isCompositing(chunkKey))
+                changes.computeIfAbsent(compositeWorld, w -> new LongOpenHashSet()).add(BlockPos.asLong(x, y, z));
+        }
+    }
+
+    @Override
+    public void run() {
+        if(changes.isEmpty())
+            return;
+
+        for(Map.Entry<CompositeWorld, LongSet> entry : changes.entrySet()) {
+            CompositeWorld compositeWorld = entry.getKey();
+            World world = compositeWorld.getWorld();
+
+            LongIterator iterator = entry.getValue().iterator();
+            while(iterator.hasNext()) {
+                long pos = iterator.nextLong();
+                int x = BlockPos.getX(pos);
+                int y = BlockPos.getY(pos);
+                int z = BlockPos.getZ(pos);
+
+                // Composited again once the composite of the chunk is done, the copied layers may not include the change
+                if(compositeWorld.isCompositing(ChunkUtil.getChunkKey(x >> 4, z >> 4)))
+                    continue;
+
+                iterator.remove();
+
+                LevelChunk chunk = ((CraftWorld) world).getHandle().getChunkSource().getChunkNow(x >> 4, z >> 4);
+
+                if(chunk == null || !compositeWorld.recompositeBlock(chunk, x, y, z))
+                    continue;
+
+                totalRecompositedBlocks++;
+                blockChangeTracker.notifyChange(world, x, y, z);
+            }
+        }
+
+        changes.values().removeIf(LongSet::isEmpty);
+    }
+
+    @EventHandler
+    public void onChunkLoad(ChunkLoadEvent event) {
+        CompositeWorld compositeWorld = compositeWorldsByWorld.get(event.getWorld());
+
+        if(compositeWorld == null)
+            return;
+
+        Chunk chunk = event.getChunk();
+        World world = event.getWorld();
+        int x = chunk.getX();
+        int z = chunk.getZ();
+
+        // The chunk may have been cached before it was unloaded, while the layers kept changing
+        blockChangeTracker.notifyChunkChange(world, x, z);
+
+        if(compositeWorld.takeGenerated(ChunkUtil.getChunkKey(x, z))) {
+            totalCompositedChunks++;
+            return;
+        }
+
+        // Compositing loads the chunks of the layers, so it's started after the event
+        Bukkit.getScheduler().runTask(Mirage.getInstance(), () -> compositeWorld.compositeLoadedChunk(x, z).thenAccept(composited -> {
+            if(!composited)
+                return;
+
+            totalCompositedChunks++;
+            blockChangeTracker.notifyChunkChange(world, x, z);
+        }));
+    }
+
+    @EventHandler
+    public void onChunkUnload(ChunkUnloadEvent event) {
+        if(compositeWorldsByWorld.containsKey(event.getWorld()))
+            event.setSaveChunk(false);
+    }
+}
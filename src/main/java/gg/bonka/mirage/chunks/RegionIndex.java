@@ -0,0 +1,94 @@
+package gg.bonka.mirage.chunks;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import org.bukkit.World;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An immutable grid of {@link RenderRegion}s, so the packet threads can find the region of a chunk without going through every region.
+ * <br><br>
+ * Every region is added to the cells of {@value CELL_SIZE}x{@value CELL_SIZE} chunks its bounding box touches,
+ * a lookup only checks the few regions in the cell of the chunk. Regions that would cover too many cells are checked for every lookup instead.
+ * When regions overlap, the region added last wins.
+ */
+class RegionIndex {
+
+    static final RegionIndex EMPTY = new RegionIndex(List.of());
+
+    private static final int CELL_SHIFT = 4;
+    private static final int CELL_SIZE = 1 << CELL_SHIFT;
+
+    // Regions larger than this amount of cells aren't worth indexing, a bounds check is just as cheap
+    private static final long MAX_INDEXED_CELLS = 1024;
+
+    private final Long2ObjectOpenHashMap<Entry[]> cells = new Long2ObjectOpenHashMap<>();
+    private final Entry[] unindexed;
+
+    /**
+     * @param regions the regions to index, in the order they were added
+     */
+    RegionIndex(List<RenderRegion> regions) {
+        Long2ObjectOpenHashMap<List<Entry>> cellLists = new Long2ObjectOpenHashMap<>();
+        List<Entry> unindexedList = new ArrayList<>();
+
+        for(int i = 0; i < regions.size(); i++) {
+            RenderRegion region = regions.get(i);
+            Entry entry = new Entry(region, i);
+
+            int minCellX = region.getMinX() >> CELL_SHIFT;
+            int minCellZ = region.getMinZ() >> CELL_SHIFT;
+            int maxCellX = region.getMaxX() >> CELL_SHIFT;
+            int maxCellZ = region.getMaxZ() >> CELL_SHIFT;
+
+            if((long) (maxCellX - minCellX + 1) * (maxCellZ - minCellZ + 1) > MAX_INDEXED_CELLS) {
+                unindexedList.add(entry);
+                continue;
+            }
+
+            for(int x = minCellX; x <= maxCellX; x++) {
+                for(int z = minCellZ; z <= maxCellZ; z++)
+                    cellLists.computeIfAbsent(ChunkUtil.getChunkKey(x, z), key -> new ArrayList<>()).add(entry);
+            }
+        }
+
+        cellLists.long2ObjectEntrySet().fastForEach(cell -> cells.put(cell.getLongKey(), cell.getValue().toArray(new Entry[0])));
+        cells.trim();
+        unindexed = unindexedList.toArray(new Entry[0]);
+    }
+
+    /**
+     * @param world the real world of the chunk
+     * @param x the x-coordinate of the chunk
+     * @param z the z-coordinate of the chunk
+     * @return the visualizer world of the last added region containing the chunk, or null when no region contains it
+     */
+    @Nullable World getVisualizer(World world, int x, int z) {
+        Entry found = findLast(cells.get(ChunkUtil.getChunkKey(x >> CELL_SHIFT, z >> CELL_SHIFT)), world, x, z);
+        Entry foundUnindexed = findLast(unindexed, world, x, z);
+
+        if(found == null || (foundUnindexed != null && foundUnindexed.order() > found.order()))
+            found = foundUnindexed;
+
+        return found == null ? null : found.region().getVisualizer();
+    }
+
+    private static @Nullable Entry findLast(@Nullable Entry[] entries, World world, int x, int z) {
+        if(entries == null)
+            return null;
+
+        // The entries are in the order the regions were added
+        for(int i = entries.length - 1; i >= 0; i--) {
+            RenderRegion region = entries[i].region();
+
+            if(region.getWorld() == world && region.contains(x, z))
+                return entries[i];
+        }
+
+        return null;
+    }
+
+    private record Entry(RenderRegion region, int order) {}
+}
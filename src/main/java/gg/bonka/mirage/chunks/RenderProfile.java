@@ -0,0 +1,224 @@
+package gg.bonka.mirage.chunks;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMaps;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import lombok.Getter;
+import org.bukkit.Chunk;
+import org.bukkit.World;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A table of world and chunk mappings, deciding which world is rendered for every chunk.
+ * <br><br>
+ * Every player has a personal profile, used by the per player methods of {@link ChunkRenderingSystem}.
+ * Named profiles can be shared by many players, for example a whole team. While a player is subscribed to a named profile,
+ * that profile is rendered instead of their personal one, and updating the profile diffs and encodes every section only once for all subscribers.
+ * <br><br>
+ * The mappings are replaced as a whole when they change, so the packet threads can read them without any locking.
+ *
+ * @see ChunkRenderingSystem#createProfile(String)
+ * @see ChunkRenderingSystem#updateChunks(RenderProfile)
+ */
+public class RenderProfile {
+
+    // Null for the personal profile of a player
+    @Getter
+    private final @Nullable String name;
+
+    private final Runnable onChange;
+
+    private volatile Map<World, World> renderWorldAs = Map.of();
+    private volatile Long2ObjectMap<World> renderChunkAs = Long2ObjectMaps.emptyMap();
+
+    private volatile List<RenderRegion> regions = List.of();
+    private volatile RegionIndex regionIndex = RegionIndex.EMPTY;
+
+    private final Set<UUID> subscribers = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param name the name of the profile, null for a personal profile
+     * @param onChange called whenever the mappings of this profile change
+     */
+    RenderProfile(@Nullable String name, Runnable onChange) {
+        this.name = name;
+        this.onChange = onChange;
+    }
+
+    /**
+     * Gets the world that should be rendered for the chunk.
+     * Chunk mappings take precedence over regions, and regions over world mappings.
+     *
+     * @param world the real world of the chunk
+     * @param x the x-coordinate of the chunk
+     * @param z the z-coordinate of the chunk
+     * @return the world to render, the real world when nothing is mapped
+     */
+    public World getRenderChunk(World world, int x, int z) {
+        World chunkWorld = renderChunkAs.get(ChunkUtil.getChunkKey(x, z));
+
+        if(chunkWorld != null)
+            return chunkWorld;
+
+        World regionWorld = regionIndex.getVisualizer(world, x, z);
+
+        if(regionWorld != null)
+            return regionWorld;
+
+        return Objects.requireNonNullElse(renderWorldAs.get(world), world);
+    }
+
+    /**
+     * Renders the world as the visualizer world.
+     *
+     * @apiNote This does not automatically update the client side chunks that are currently loaded!
+     * @see ChunkRenderingSystem#updateChunks(RenderProfile) updateChunks to update the loaded chunks of all subscribers.
+     *
+     * @param world the original world to render
+     * @param visualizer the visualizer world to render
+     */
+    public void renderWorldAs(World world, World visualizer) {
+        synchronized (this) {
+            Map<World, World> copy = new HashMap<>(renderWorldAs);
+            copy.put(world, visualizer);
+            renderWorldAs = Map.copyOf(copy);
+        }
+
+        onChange.run();
+    }
+
+    /**
+     * Renders the chunk as the visualizer chunk.
+     *
+     * @apiNote This does not automatically update the client side chunks that are currently loaded!
+     * @see ChunkRenderingSystem#updateChunks(RenderProfile) updateChunks to update the loaded chunks of all subscribers.
+     *
+     * @param chunk the original chunk to render
+     * @param visualizer the visualizer chunk to render
+     */
+    public void renderChunkAs(Chunk chunk, Chunk visualizer) {
+        synchronized (this) {
+            Long2ObjectOpenHashMap<World> copy = new Long2ObjectOpenHashMap<>(renderChunkAs);
+            copy.put(ChunkUtil.getChunkKey(chunk.getX(), chunk.getZ()), visualizer.getWorld());
+            renderChunkAs = copy;
+        }
+
+        onChange.run();
+    }
+
+    /**
+     * Removes the world mapping, specific chunks will keep rendering differently.
+     *
+     * @param world the world to remove
+     */
+    public void removeWorldRendering(World world) {
+        synchronized (this) {
+            Map<World, World> copy = new HashMap<>(renderWorldAs);
+            copy.remove(world);
+            renderWorldAs = Map.copyOf(copy);
+        }
+
+        onChange.run();
+    }
+
+    /**
+     * Removes the chunk mapping.
+     *
+     * @param chunk the chunk to remove
+     */
+    public void removeChunkRendering(Chunk chunk) {
+        synchronized (this) {
+            Long2ObjectOpenHashMap<World> copy = new Long2ObjectOpenHashMap<>(renderChunkAs);
+            copy.remove(ChunkUtil.getChunkKey(chunk.getX(), chunk.getZ()));
+            renderChunkAs = copy;
+        }
+
+        onChange.run();
+    }
+
+    /**
+     * Renders all regions as their visualizer worlds. Where regions overlap, the region added last wins.
+     *
+     * @apiNote This does not automatically update the client side chunks that are currently loaded!
+     * @see ChunkRenderingSystem#applyRegions(RenderProfile, Collection) applyRegions to add the regions and update the subscribers at once.
+     *
+     * @param regions the regions to add
+     */
+    public void addRegions(Collection<RenderRegion> regions) {
+        synchronized (this) {
+            List<RenderRegion> copy = new ArrayList<>(this.regions);
+            copy.addAll(regions);
+            setRegions(copy);
+        }
+
+        onChange.run();
+    }
+
+    /**
+     * Removes the regions, chunks covered by other regions or mappings keep rendering differently.
+     *
+     * @apiNote This does not automatically update the client side chunks that are currently loaded!
+     * @see ChunkRenderingSystem#removeRegions(RenderProfile, Collection) removeRegions to remove the regions and update the subscribers at once.
+     *
+     * @param regions the regions to remove
+     */
+    public void removeRegions(Collection<RenderRegion> regions) {
+        synchronized (this) {
+            List<RenderRegion> copy = new ArrayList<>(this.regions);
+            copy.removeAll(regions);
+            setRegions(copy);
+        }
+
+        onChange.run();
+    }
+
+    private void setRegions(List<RenderRegion> regions) {
+        this.regions = List.copyOf(regions);
+        this.regionIndex = regions.isEmpty() ? RegionIndex.EMPTY : new RegionIndex(this.regions);
+    }
+
+    /**
+     * @return the regions of this profile, in the order they were added
+     */
+    public List<RenderRegion> getRegions() {
+        return regions;
+    }
+
+    /**
+     * Removes all world, chunk and region mappings.
+     */
+    public void removeRendering() {
+        synchronized (this) {
+            renderWorldAs = Map.of();
+            renderChunkAs = Long2ObjectMaps.emptyMap();
+            setRegions(List.of());
+        }
+
+        onChange.run();
+    }
+
+    /**
+     * @return true if any world, chunk or region is mapped
+     */
+    public boolean hasMappings() {
+        return !renderWorldAs.isEmpty() || !renderChunkAs.isEmpty() || !regions.isEmpty();
+    }
+
+    /**
+     * @return the players that are currently subscribed to this profile
+     */
+    public Set<UUID> getSubscribers() {
+        return Collections.unmodifiableSet(subscribers);
+    }
+
+    void addSubscriber(UUID uuid) {
+        subscribers.add(uuid);
+    }
+
+    void removeSubscriber(UUID uuid) {
+        subscribers.remove(uuid);
+    }
+}
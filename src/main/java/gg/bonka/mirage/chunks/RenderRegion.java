@@ -0,0 +1,145 @@
+package gg.bonka.mirage.chunks;
+
+import lombok.Getter;
+import org.bukkit.World;
+
+/**
+ * An area of chunks in a world that is rendered as a visualizer world.
+ * A single region replaces thousands of chunk mappings, for example a whole arena.
+ * <br><br>
+ * All coordinates are chunk coordinates. The corners of a polygon are the centers of its corner chunks, and a chunk is inside
+ * the polygon when its center lies inside or on an edge. Like a rectangle, a polygon includes its corner chunks and edges,
+ * so a polygon with the four corners of a rectangle contains the same chunks.
+ *
+ * @see ChunkRenderingSystem#applyRegions(org.bukkit.entity.Player, java.util.Collection)
+ * @see RenderProfile#addRegions(java.util.Collection)
+ */
+@Getter
+public abstract class RenderRegion {
+
+    private final World world;
+    private final World visualizer;
+
+    // The bounding box of the region, inclusive
+    private final int minX;
+    private final int minZ;
+    private final int maxX;
+    private final int maxZ;
+
+    private RenderRegion(World world, World visualizer, int minX, int minZ, int maxX, int maxZ) {
+        this.world = world;
+        this.visualizer = visualizer;
+        this.minX = minX;
+        this.minZ = minZ;
+        this.maxX = maxX;
+        this.maxZ = maxZ;
+    }
+
+    /**
+     * Creates a rectangular region, the corners can be given in any order.
+     *
+     * @param world the original world
+     * @param visualizer the visualizer world to render inside the region
+     * @param x1 the x-coordinate of the first corner chunk
+     * @param z1 the z-coordinate of the first corner chunk
+     * @param x2 the x-coordinate of the second corner chunk
+     * @param z2 the z-coordinate of the second corner chunk
+     * @return the region including both corner chunks
+     */
+    public static RenderRegion rectangle(World world, World visualizer, int x1, int z1, int x2, int z2) {
+        return new Rectangle(world, visualizer, Math.min(x1, x2), Math.min(z1, z2), Math.max(x1, x2), Math.max(z1, z2));
+    }
+
+    /**
+     * Creates a polygonal region from its corners, in order. The polygon is closed automatically.
+     *
+     * @param world the original world
+     * @param visualizer the visualizer world to render inside the region
+     * @param xs the x-coordinates of the corner chunks
+     * @param zs the z-coordinates of the corner chunks
+     * @return the region containing every chunk whose center lies inside or on the edge of the polygon
+     * @throws IllegalArgumentException when there are less than 3 corners, or the coordinate arrays differ in length
+     */
+    public static RenderRegion polygon(World world, World visualizer, int[] xs, int[] zs) {
+        if(xs.length != zs.length || xs.length < 3)
+            throw new IllegalArgumentException("A polygon needs at least 3 corners, with an x and z coordinate each!");
+
+        int minX = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE, maxZ = Integer.MIN_VALUE;
+
+        for(int i = 0; i < xs.length; i++) {
+            minX = Math.min(minX, xs[i]);
+            minZ = Math.min(minZ, zs[i]);
+            maxX = Math.max(maxX, xs[i]);
+            maxZ = Math.max(maxZ, zs[i]);
+        }
+
+        return new Polygon(world, visualizer, minX, minZ, maxX, maxZ, xs.clone(), zs.clone());
+    }
+
+    /**
+     * @param x the x-coordinate of the chunk
+     * @param z the z-coordinate of the chunk
+     * @return true if the chunk is part of this region
+     */
+    public abstract boolean contains(int x, int z);
+
+    protected boolean inBounds(int x, int z) {
+        return x >= minX && x <= maxX && z >= minZ && z <= maxZ;
+    }
+
+    private static class Rectangle extends RenderRegion {
+
+        private Rectangle(World world, World visualizer, int minX, int minZ, int maxX, int maxZ) {
+            super(world, visualizer, minX, minZ, maxX, maxZ);
+        }
+
+        @Override
+        public boolean contains(int x, int z) {
+            return inBounds(x, z);
+        }
+    }
+
+    private static class Polygon extends RenderRegion {
+
+        private final int[] xs;
+        private final int[] zs;
+
+        private Polygon(World world, World visualizer, int minX, int minZ, int maxX, int maxZ, int[] xs, int[] zs) {
+            super(world, visualizer, minX, minZ, maxX, maxZ);
+            this.xs = xs;
+            this.zs = zs;
+        }
+
+        @Override
+        public boolean contains(int x, int z) {
+            if(!inBounds(x, z))
+                return false;
+
+            // The corners are chunk centers as well, so the chunk coordinates can be tested directly
+            boolean inside = false;
+
+            for(int i = 0, j = xs.length - 1; i < xs.length; j = i++) {
+                if(isOnEdge(x, z, xs[j], zs[j], xs[i], zs[i]))
+                    return true;
+
+                // Even-odd ray casting
+                if((zs[i] > z) == (zs[j] > z))
+                    continue;
+
+                double crossX = xs[j] + (double) (xs[i] - xs[j]) * (z - zs[j]) / (zs[i] - zs[j]);
+
+                if(x < crossX)
+                    inside = !inside;
+            }
+
+            return inside;
+        }
+
+        private static boolean isOnEdge(int x, int z, int x1, int z1, int x2, int z2) {
+            long cross = (long) (x2 - x1) * (z - z1) - (long) (z2 - z1) * (x - x1);
+
+            return cross == 0 && x >= Math.min(x1, x2) && x <= Math.max(x1, x2) && z >= Math.min(z1, z2) && z <= Math.max(z1, z2);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package gg.bonka.mirage.chunks;
+
+import gg.bonka.mirage.chunks.cache.VisualizerChunkResidency;
+import gg.bonka.mirage.chunks.packets.MultiBlockPacket;
+import gg.bonka.mirage.chunks.render.MirrorUpdate;
+import gg.bonka.mirage.chunks.render.RenderScheduler;
+import gg.bonka.mirage.chunks.render.SectionUpdate;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.shorts.ShortOpenHashSet;
+import it.unimi.dsi.fastutil.shorts.ShortSet;
+import lombok.Getter;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.world.level.chunk.LevelChunk;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+import org.bukkit.craftbukkit.CraftWorld;
+import org.bukkit.entity.Player;
+import org.bukkit.scheduler.BukkitRunnable;
+
+import java.util.*;
+
+/**
+ * Forwards block changes in visualizer worlds to the players that currently see those visualizers in place of their real world.
+ * <br><br>
+ * Players that aren't in the visualizer world don't receive its block updates from the server,
+ * so without this a visualizer that is edited while it's mirrored only shows the changes after the next render reload.
+ * The changed positions are collected per section, and once per tick every changed section is encoded into a single packet.
+ * That packet is shared by all players whose client has the visualizer in that section,
+ * and goes through the {@link RenderScheduler}, so it's paced together with the other render updates of the player.
+ * <br><br>
+ * Only changes in worlds that are mirrored to at least one player are collected. This class is only used on the main thread.
+ */
+public class VisualizerChangeMirror extends BukkitRunnable {
+
+    private final Map<UUID, ChunkRenderSettings> playerRenderSettings;
+    private final VisualizerChunkResidency visualizerChunkResidency;
+    private final RenderScheduler renderScheduler;
+
+    // The changed positions per section, keyed by the section position
+    private final Map<World, Long2ObjectMap<ShortSet>> changes = new HashMap<>();
+
+    @Getter
+    private long totalMirroredSections;
+
+    /**
+     * @param playerRenderSettings the render settings of all players
+     * @param visualizerChunkResidency the residency that knows which visualizer worlds are mirrored
+     * @param renderScheduler the scheduler to send the changes through
+     */
+    VisualizerChangeMirror(Map<UUID, ChunkRenderSettings> playerRenderSettings, VisualizerChunkResidency visualizerChunkResidency, RenderScheduler renderScheduler) {
+        this.playerRenderSettings = playerRenderSettings;
+        this.visualizerChunkResidency = visualizerChunkResidency;
+        this.renderScheduler = renderScheduler;
+    }
+
+    /**
+     * Records a changed block, it's sent to the players with the next tick, once the change is applied to the world.
+     *
+     * @param world the world the block is in
+     * @param x the x-coordinate of the block
+     * @param y the y-coordinate of the block
+     * @param z the z-coordinate of the block
+     */
+    public void recordChange(World world, int x, int y, int z) {
+        if(!visualizerChunkResidency.isMirrored(world))
+            return;
+
+        changes.computeIfAbsent(world, w -> new Long2ObjectOpenHashMap<>())
+                .computeIfAbsent(SectionPos.asLong(x >> 4, y >> 4, z >> 4), key -> new ShortOpenHashSet())
+                .add(SectionPos.sectionRelativePos(new BlockPos(x, y, z)));
+    }
+
+    @Override
+    public void run() {
+        if(changes.isEmpty())
+            return;
+
+        Map<Player, ChunkRenderSettings> players = new HashMap<>();
+
+        for(Map.Entry<UUID, ChunkRenderSettings> entry : playerRenderSettings.entrySet()) {
+            Player player = Bukkit.getPlayer(entry.getKey());
+
+            if(player != null && entry.getValue().isActive())
+                players.put(player, entry.getValue());
+        }
+
+        Map<Player, List<SectionUpdate>> updates = new HashMap<>();
+
+        for(Map.Entry<World, Long2ObjectMap<ShortSet>> entry : changes.entrySet()) {
+            World visualizer = entry.getKey();
+
+            for(Long2ObjectMap.Entry<ShortSet> section : entry.getValue().long2ObjectEntrySet())
+                mirrorSection(visualizer, SectionPos.of(section.getLongKey()), section.getValue(), players, updates);
+        }
+
+        changes.clear();
+
+        for(Map.Entry<Player, List<SectionUpdate>> entry : updates.entrySet())
+            renderScheduler.enqueue(entry.getKey(), entry.getValue(), players.get(entry.getKey()));
+    }
+
+    private void mirrorSection(World visualizer, SectionPos sectionPos, ShortSet positions, Map<Player, ChunkRenderSettings> players, Map<Player, List<SectionUpdate>> updates) {
+        LevelChunk chunk = ((CraftWorld) visualizer).getHandle().getChunkSource().getChunkNow(sectionPos.x(), sectionPos.z());
+
+        if(chunk == null)
+            return;
+
+        int sectionIndex = chunk.getSectionIndexFromSectionY(sectionPos.y());
+        int sectionCount = chunk.getSectionsCount();
+
+        if(sectionIndex < 0 || sectionIndex >= sectionCount)
+            return;
+
+        LevelChunkSection section = chunk.getSection(sectionIndex);
+        long chunkKey = ChunkUtil.getChunkKey(sectionPos.x(), sectionPos.z());
+        MultiBlockPacket packet = null;
+
+        for(Map.Entry<Player, ChunkRenderSettings> entry : players.entrySet()) {
+            World world = entry.getKey().getWorld();
+
+            // The players in the visualizer world get its block updates from the server itself
+            if(world == visualizer || entry.getValue().getClientsideWorld(world, chunkKey, sectionIndex) != visualizer)
+                continue;
+
+            // The packet is only built once a player needs it, and then shared by all of them
+            if(packet == null) {
+                packet = new MultiBlockPacket(sectionPos, positions, section);
+                totalMirroredSections++;
+            }
+
+            // The client already has the visualizer in the section, so the update keeps it there
+            updates.computeIfAbsent(entry.getKey(), player -> new ArrayList<>())
+                    .add(new MirrorUpdate(world, sectionPos, sectionIndex, sectionCount, visualizer, packet));
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package gg.bonka.mirage.chunks.cache;
+
+import gg.bonka.mirage.chunks.ChunkUtil;
+import gg.bonka.mirage.chunks.packets.ChunkPacketData;
+import org.bukkit.World;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of prepared {@link ChunkPacketData}, keyed by the world the chunk was encoded from and the chunk key.
+ * When many players render the same visualizer world, the chunk and light data only have to be encoded once.
+ * <br><br>
+ * Entries are evicted least recently used first when the cache is full, and are dropped once they get older than the max age.
+ * Block changes invalidate the changed chunk and its neighbours, since light can spread into neighbouring chunks.
+ * <br><br>
+ * This class is thread safe, chunk packets are usually sent from netty threads.
+ */
+public class ChunkPacketCache {
+
+    // Light engine updates are applied after the block event, so changed chunks get invalidated again a tick later.
+    private final Set<CacheKey> pendingInvalidations = new HashSet<>();
+    // Worlds that had no cached chunks when a block changed, an encode started before the change may have cached one since.
+    private final Set<UUID> pendingWorldInvalidations = new HashSet<>();
+    private final LinkedHashMap<CacheKey, CachedChunk> entries;
+    private final Set<UUID> cachedWorlds = ConcurrentHashMap.newKeySet();
+
+    private final int maxSize;
+    private final long maxAgeNanos;
+
+    private int ticksSinceSweep = 0;
+
+    // Increases with every invalidation in a world, so encodes that raced with an invalidation of their world are never stored.
+    // Kept when a world is invalidated as a whole, so an encode that started before can't match a new counter.
+    private final Map<UUID, AtomicLong> generations = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxSize the maximum amount of chunks kept in the cache
+     * @param maxAgeSeconds the amount of seconds after which a cached chunk is re-encoded
+     */
+    public ChunkPacketCache(int maxSize, int maxAgeSeconds) {
+        this.maxSize = maxSize;
+        this.maxAgeNanos = maxAgeSeconds * 1_000_000_000L;
+
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<CacheKey, CachedChunk> eldest) {
+                if(size() <= ChunkPacketCache.this.maxSize)
+                    return false;
+
+                evictions.increment();
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Gets the prepared chunk data from the cache, encoding and caching it when it isn't present.
+     *
+     * @param world the world to encode the chunk from
+     * @param x the x-coordinate of the chunk
+     * @param z the z-coordinate of the chunk
+     * @return the prepared chunk data, or null when the chunk could not be loaded
+     */
+    public @Nullable ChunkPacketData get(World world, int x, int z) {
+        return get(world, x, z, true);
+    }
+
+    /**
+     * Gets the prepared chunk data from the cache, encoding and caching it when it isn't present and the chunk is loaded.
+     * Never loads the chunk, so it's safe to call from the packet threads.
+     *
+     * @param world the world to encode the chunk from
+     * @param x the x-coordinate of the chunk
+     * @param z the z-coordinate of the chunk
+     * @return the prepared chunk data, or null when it isn't cached and the chunk isn't loaded
+     */
+    public @Nullable ChunkPacketData getIfLoaded(World world, int x, int z) {
+        return get(world, x, z, false);
+    }
+
+    private @Nullable ChunkPacketData get(World world, int x, int z, boolean load) {
+        if(maxSize <= 0)
+            return encode(world, x, z, load);
+
+        CacheKey key = new CacheKey(world.getUID(), ChunkUtil.getChunkKey(x, z));
+        long now = System.nanoTime();
+
+        synchronized (entries) {
+            CachedChunk cached = entries.get(key);
+
+            if(cached != null) {
+                if(now - cached.createdAt() < maxAgeNanos) {
+                    hits.increment();
+                    return cached.data();
+                }
+
+                entries.remove(key);
+                evictions.increment();
+            }
+        }
+
+        misses.increment();
+
+        AtomicLong generation = getGeneration(key.worldId());
+        long startGeneration = generation.get();
+        ChunkPacketData data = encode(world, x, z, load);
+
+        if(data == null)
+            return null;
+
+        synchronized (entries) {
+            if(generation.get() == startGeneration) {
+                entries.put(key, new CachedChunk(data, now));
+                cachedWorlds.add(key.worldId());
+            }
+        }
+
+        return data;
+    }
+
+    /**
+     * Checks whether the chunk is cached and not expired, without counting it as a hit or miss.
+     *
+     * @param world the world the chunk was encoded from
+     * @param x the x-coordinate of the chunk
+     * @param z the z-coordinate of the chunk
+     * @return true if the chunk is cached
+     */
+    public boolean isCached(World world, int x, int z) {
+        CacheKey key = new CacheKey(world.getUID(), ChunkUtil.getChunkKey(x, z));
+
+        synchronized (entries) {
+            CachedChunk cached = entries.get(key);
+            return cached != null && System.nanoTime() - cached.createdAt() < maxAgeNanos;
+        }
+    }
+
+    private static @Nullable ChunkPacketData encode(World world, int x, int z, boolean load) {
+        return load ? ChunkPacketData.create(world, x, z) : ChunkPacketData.createIfLoaded(world, x, z);
+    }
+
+    /**
+     * Invalidates the chunk containing the given block and its neighbouring chunks.
+     *
+     * @param world the world the block is in
+     * @param x the x-coordinate of the block
+     * @param y the y-coordinate of the block
+     * @param z the z-coordinate of the block
+     */
+    public void invalidateBlock(World world, int x, int y, int z) {
+        invalidateChunk(world, x >> 4, z >> 4);
+    }
+
+    /**
+     * Invalidates the given chunk and its neighbouring chunks.
+     *
+     * @param world the world the chunk is in
+     * @param chunkX the x-coordinate of the chunk
+     * @param chunkZ the z-coordinate of the chunk
+     */
+    public void invalidateChunk(World world, int chunkX, int chunkZ) {
+        synchronized (entries) {
+            // Bumped before the shortcut, an encode of this world that is still running may not be stored either
+            getGeneration(world.getUID()).incrementAndGet();
+
+            // Most block changes happen in worlds that are never rendered for anyone
+            if(!cachedWorlds.contains(world.getUID())) {
+                pendingWorldInvalidations.add(world.getUID());
+                return;
+            }
+
+            for(int offsetX = -1; offsetX <= 1; offsetX++) {
+                for(int offsetZ = -1; offsetZ <= 1; offsetZ++) {
+                    CacheKey key = new CacheKey(world.getUID(), ChunkUtil.getChunkKey(chunkX + offsetX, chunkZ + offsetZ));
+
+                    entries.remove(key);
+                    pendingInvalidations.add(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all cached chunks of the given world.
+     *
+     * @param world the world to invalidate
+     */
+    public void invalidateWorld(World world) {
+        UUID worldId = world.getUID();
+
+        synchronized (entries) {
+            getGeneration(worldId).incrementAndGet();
+            entries.keySet().removeIf(key -> key.worldId().equals(worldId));
+            cachedWorlds.remove(worldId);
+        }
+    }
+
+    /**
+     * Applies the pending invalidations of the previous tick, and once every second removes all entries that exceeded the max age.
+     * Should be called once every tick.
+     */
+    public void tick() {
+        long now = System.nanoTime();
+
+        synchronized (entries) {
+            if(!pendingInvalidations.isEmpty()) {
+                pendingInvalidations.stream().map(CacheKey::worldId).distinct().forEach(worldId -> getGeneration(worldId).incrementAndGet());
+                entries.keySet().removeAll(pendingInvalidations);
+                pendingInvalidations.clear();
+            }
+
+            if(!pendingWorldInvalidations.isEmpty()) {
+                pendingWorldInvalidations.forEach(worldId -> getGeneration(worldId).incrementAndGet());
+                entries.keySet().removeIf(key -> pendingWorldInvalidations.contains(key.worldId()));
+                pendingWorldInvalidations.clear();
+            }
+
+            if(++ticksSinceSweep < 20)
+                return;
+
+            ticksSinceSweep = 0;
+
+            Iterator<CachedChunk> iterator = entries.values().iterator();
+            while(iterator.hasNext()) {
+                if(now - iterator.next().createdAt() >= maxAgeNanos) {
+                    iterator.remove();
+                    evictions.increment();
+                }
+            }
+        }
+    }
+
+    private AtomicLong getGeneration(UUID worldId) {
+        return generations.computeIfAbsent(worldId, id -> new AtomicLong());
+    }
+
+    public int getSize() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return the fraction of lookups that were served from the cache, between 0 and 1
+     */
+    public double getHitRate() {
+        long hits = getHits();
+        long total = hits + getMisses();
+
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * Resets the hit, miss and eviction counters.
+     */
+    public void resetStatistics() {
+        hits.reset();
+        misses.reset();
+        evictions.reset();
+    }
+
+    private record CacheKey(UUID worldId, long chunkKey) {}
+
+    private record CachedChunk(ChunkPacketData data, long createdAt) {}
+}
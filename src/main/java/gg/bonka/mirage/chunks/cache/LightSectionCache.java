@@ -0,0 +1,176 @@
+package gg.bonka.mirage.chunks.cache;
+
+import gg.bonka.mirage.chunks.ChunkUtil;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import net.minecraft.core.SectionPos;
+import net.minecraft.world.level.LightLayer;
+import net.minecraft.world.level.chunk.DataLayer;
+import net.minecraft.world.level.lighting.LevelLightEngine;
+import org.bukkit.World;
+import org.bukkit.craftbukkit.CraftWorld;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * A bounded cache of the sky and block light of chunk sections, keyed by the world and the chunk key.
+ * When many players switch to the same visualizer world, its light only has to be copied out of the light engine once.
+ * <br><br>
+ * Entries are evicted least recently used first when the cache is full.
+ * Block changes invalidate the changed chunk and its neighbours, both right away and a tick later,
+ * since the light engine applies its updates after the block event.
+ * <br><br>
+ * This class is only used on the main thread.
+ */
+public class LightSectionCache {
+
+    // The light of a section the light engine has no light in, unlike null which means it has no data at all
+    public static final byte[] EMPTY = new byte[0];
+
+    private final Set<CacheKey> pendingInvalidations = new HashSet<>();
+    private final LinkedHashMap<CacheKey, LightSection[]> entries;
+    private final Set<UUID> cachedWorlds = new HashSet<>();
+
+    /**
+     * @param maxChunks the maximum amount of chunks of which the light is kept in the cache
+     */
+    public LightSectionCache(int maxChunks) {
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<CacheKey, LightSection[]> eldest) {
+                return size() > maxChunks;
+            }
+        };
+    }
+
+    /**
+     * Gets the light of a section, copying it out of the light engine when it isn't cached.
+     *
+     * @param world the world the section is in
+     * @param chunkX the x-coordinate of the chunk
+     * @param chunkZ the z-coordinate of the chunk
+     * @param sectionIndex the index of the section in the chunk
+     * @param sectionCount the amount of sections in the chunk
+     * @return the light of the section
+     */
+    public LightSection get(World world, int chunkX, int chunkZ, int sectionIndex, int sectionCount) {
+        CacheKey key = new CacheKey(world.getUID(), ChunkUtil.getChunkKey(chunkX, chunkZ));
+        LightSection[] sections = entries.get(key);
+
+        if(sections == null || sections.length != sectionCount) {
+            sections = new LightSection[sectionCount];
+            entries.put(key, sections);
+            cachedWorlds.add(key.worldId());
+        }
+
+        if(sections[sectionIndex] == null) {
+            LevelLightEngine lightEngine = ((CraftWorld) world).getHandle().getLightEngine();
+            SectionPos sectionPos = SectionPos.of(chunkX, (world.getMinHeight() >> 4) + sectionIndex, chunkZ);
+
+            sections[sectionIndex] = new LightSection(copy(lightEngine, LightLayer.SKY, sectionPos), copy(lightEngine, LightLayer.BLOCK, sectionPos));
+        }
+
+        return sections[sectionIndex];
+    }
+
+    private static @Nullable byte[] copy(LevelLightEngine lightEngine, LightLayer layer, SectionPos sectionPos) {
+        DataLayer data = lightEngine.getLayerListener(layer).getDataLayerData(sectionPos);
+
+        if(data == null)
+            return null;
+
+        return data.isEmpty() ? EMPTY : data.getData().clone();
+    }
+
+    /**
+     * Invalidates the chunk containing the given block and its neighbouring chunks.
+     *
+     * @param world the world the block is in
+     * @param x the x-coordinate of the block
+     * @param y the y-coordinate of the block
+     * @param z the z-coordinate of the block
+     */
+    public void invalidateBlock(World world, int x, int y, int z) {
+        invalidateChunk(world, x >> 4, z >> 4);
+    }
+
+    /**
+     * Invalidates the given chunk and its neighbouring chunks.
+     *
+     * @param world the world the chunk is in
+     * @param chunkX the x-coordinate of the chunk
+     * @param chunkZ the z-coordinate of the chunk
+     */
+    public void invalidateChunk(World world, int chunkX, int chunkZ) {
+        if(!cachedWorlds.contains(world.getUID()))
+            return;
+
+        for(int offsetX = -1; offsetX <= 1; offsetX++) {
+            for(int offsetZ = -1; offsetZ <= 1; offsetZ++) {
+                CacheKey key = new CacheKey(world.getUID(), ChunkUtil.getChunkKey(chunkX + offsetX, chunkZ + offsetZ));
+
+                entries.remove(key);
+                pendingInvalidations.add(key);
+            }
+        }
+    }
+
+    /**
+     * Removes all cached light of the given world.
+     *
+     * @param world the world to invalidate
+     */
+    public void invalidateWorld(World world) {
+        UUID worldId = world.getUID();
+
+        entries.keySet().removeIf(key -> key.worldId().equals(worldId));
+        pendingInvalidations.removeIf(key -> key.worldId().equals(worldId));
+        cachedWorlds.remove(worldId);
+    }
+
+    /**
+     * Applies the pending invalidations of the previous tick, should be called once every tick.
+     */
+    public void tick() {
+        if(pendingInvalidations.isEmpty())
+            return;
+
+        entries.keySet().removeAll(pendingInvalidations);
+        pendingInvalidations.clear();
+    }
+
+    public int getSize() {
+        return entries.size();
+    }
+
+    /**
+     * The sky and block light of a single section, {@link #EMPTY} when the section has no light of that type,
+     * or null when the light engine has no data for the section at all. The arrays are never modified, and can be read from any thread.
+     */
+    @Getter
+    @AllArgsConstructor
+    public static class LightSection {
+
+        private final @Nullable byte[] skyLight;
+        private final @Nullable byte[] blockLight;
+
+        /**
+         * @param other the light of another section
+         * @return true if the sky light differs
+         */
+        public boolean isSkyLightDifferent(LightSection other) {
+            return !Arrays.equals(skyLight, other.skyLight);
+        }
+
+        /**
+         * @param other the light of another section
+         * @return true if the block light differs
+         */
+        public boolean isBlockLightDifferent(LightSection other) {
+            return !Arrays.equals(blockLight, other.blockLight);
+        }
+    }
+
+    private record CacheKey(UUID worldId, long chunkKey) {}
+}
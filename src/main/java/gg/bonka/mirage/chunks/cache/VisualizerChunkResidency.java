@@ -0,0 +1,200 @@
+package gg.bonka.mirage.chunks.cache;
+
+import gg.bonka.mirage.Mirage;
+import gg.bonka.mirage.chunks.ChunkUtil;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.longs.LongSets;
+import org.bukkit.World;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the chunks of visualizer worlds loaded while they are mirrored to players, using plugin chunk tickets.
+ * <br><br>
+ * Visualizer worlds are regular worlds, so without tickets the server unloads their chunks at any moment,
+ * and they have to be read from disk again the next time a player looks at them.
+ * Chunks that are no longer mirrored to anyone keep their ticket in a least recently used list,
+ * bounded by the retain limit, so walking back and forth doesn't reload them.
+ * <br><br>
+ * The resident chunks are only changed on the main thread, the hit rate can be recorded from any thread.
+ */
+public class VisualizerChunkResidency {
+
+    private final int retainLimit;
+
+    private final Map<World, LongSet> mirroredChunks = new HashMap<>();
+
+    // Chunks that are no longer mirrored but still hold their ticket, least recently used first
+    private final LinkedHashSet<ResidentChunk> retainedChunks = new LinkedHashSet<>();
+
+    private final Map<UUID, WorldStatistics> statistics = new ConcurrentHashMap<>();
+
+    /**
+     * @param retainLimit the maximum amount of chunks that keep their ticket after they are no longer mirrored
+     */
+    public VisualizerChunkResidency(int retainLimit) {
+        this.retainLimit = retainLimit;
+    }
+
+    /**
+     * Updates the tickets to the chunks that are currently mirrored to players.
+     * Newly mirrored chunks get a ticket, chunks that are no longer mirrored are retained until the retain limit is reached.
+     * Must be called on the main thread.
+     *
+     * @param mirrored the chunk keys per visualizer world that are mirrored to at least one player
+     */
+    public void update(Map<World, LongSet> mirrored) {
+        for(Map.Entry<World, LongSet> entry : mirrored.entrySet()) {
+            World world = entry.getKey();
+            LongSet chunks = mirroredChunks.computeIfAbsent(world, w -> new LongOpenHashSet());
+
+            LongIterator iterator = entry.getValue().iterator();
+            while(iterator.hasNext()) {
+                long chunkKey = iterator.nextLong();
+
+                if(!chunks.add(chunkKey))
+                    continue;
+
+                // Retained chunks still have their ticket
+                if(!retainedChunks.remove(new ResidentChunk(world, chunkKey)))
+                    world.addPluginChunkTicket(ChunkUtil.getChunkX(chunkKey), ChunkUtil.getChunkZ(chunkKey), Mirage.getInstance());
+            }
+        }
+
+        Iterator<Map.Entry<World, LongSet>> worlds = mirroredChunks.entrySet().iterator();
+        while(worlds.hasNext()) {
+            Map.Entry<World, LongSet> entry = worlds.next();
+            LongSet stillMirrored = mirrored.getOrDefault(entry.getKey(), LongSets.emptySet());
+
+            LongIterator iterator = entry.getValue().iterator();
+            while(iterator.hasNext()) {
+                long chunkKey = iterator.nextLong();
+
+                if(stillMirrored.contains(chunkKey))
+                    continue;
+
+                iterator.remove();
+                retainedChunks.add(new ResidentChunk(entry.getKey(), chunkKey));
+            }
+
+            if(entry.getValue().isEmpty())
+                worlds.remove();
+        }
+
+        Iterator<ResidentChunk> retained = retainedChunks.iterator();
+        while(retainedChunks.size() > retainLimit && retained.hasNext()) {
+            ResidentChunk chunk = retained.next();
+            retained.remove();
+            release(chunk.world(), chunk.chunkKey());
+        }
+    }
+
+    /**
+     * Records whether a visualizer chunk was loaded when it had to be sent to a player.
+     *
+     * @param world the visualizer world
+     * @param hit true if the chunk was loaded
+     */
+    public void recordAccess(World world, boolean hit) {
+        WorldStatistics worldStatistics = statistics.computeIfAbsent(world.getUID(), uuid -> new WorldStatistics());
+        (hit ? worldStatistics.hits : worldStatistics.misses).increment();
+    }
+
+    /**
+     * Forgets all chunks of a world that is being unloaded, its tickets are removed together with the world.
+     *
+     * @param world the world to forget
+     */
+    public void invalidateWorld(World world) {
+        mirroredChunks.remove(world);
+        retainedChunks.removeIf(chunk -> chunk.world() == world);
+        statistics.remove(world.getUID());
+    }
+
+    /**
+     * Removes all tickets, should only be called when Mirage gets disabled.
+     */
+    public void releaseAll() {
+        for(Map.Entry<World, LongSet> entry : mirroredChunks.entrySet()) {
+            LongIterator iterator = entry.getValue().iterator();
+
+            while(iterator.hasNext())
+                release(entry.getKey(), iterator.nextLong());
+        }
+
+        for(ResidentChunk chunk : retainedChunks)
+            release(chunk.world(), chunk.chunkKey());
+
+        mirroredChunks.clear();
+        retainedChunks.clear();
+    }
+
+    private void release(World world, long chunkKey) {
+        world.removePluginChunkTicket(ChunkUtil.getChunkX(chunkKey), ChunkUtil.getChunkZ(chunkKey), Mirage.getInstance());
+    }
+
+    /**
+     * @return the visualizer worlds that currently have resident chunks
+     */
+    public Set<World> getResidentWorlds() {
+        Set<World> worlds = new HashSet<>(mirroredChunks.keySet());
+
+        for(ResidentChunk chunk : retainedChunks)
+            worlds.add(chunk.world());
+
+        return worlds;
+    }
+
+    /**
+     * @param world the visualizer world
+     * @return the amount of chunks of the world that are kept loaded, both mirrored and retained
+     */
+    public int getResidentChunkCount(World world) {
+        int retained = (int) retainedChunks.stream().filter(chunk -> chunk.world() == world).count();
+        return mirroredChunks.getOrDefault(world, LongSets.emptySet()).size() + retained;
+    }
+
+    /**
+     * @param world the world to check
+     * @return true if any chunk of the world is currently mirrored to at least one player
+     */
+    public boolean isMirrored(World world) {
+        return mirroredChunks.containsKey(world);
+    }
+
+    /**
+     * @param world the visualizer world
+     * @return the amount of chunks of the world that are currently mirrored to at least one player
+     */
+    public int getMirroredChunkCount(World world) {
+        return mirroredChunks.getOrDefault(world, LongSets.emptySet()).size();
+    }
+
+    /**
+     * @param world the visualizer world
+     * @return the fraction of sent chunks of the world that were already loaded, between 0 and 1
+     */
+    public double getHitRate(World world) {
+        WorldStatistics worldStatistics = statistics.get(world.getUID());
+
+        if(worldStatistics == null)
+            return 0;
+
+        long hits = worldStatistics.hits.sum();
+        long total = hits + worldStatistics.misses.sum();
+
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    private record ResidentChunk(World world, long chunkKey) {}
+
+    private static class WorldStatistics {
+
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+    }
+}
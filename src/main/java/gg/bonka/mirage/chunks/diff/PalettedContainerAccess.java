@@ -0,0 +1,65 @@
+package gg.bonka.mirage.chunks.diff;
+
+import net.minecraft.util.BitStorage;
+import net.minecraft.world.level.chunk.Palette;
+import net.minecraft.world.level.chunk.PalettedContainer;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Gives access to the palette and the packed data storage of a {@link PalettedContainer}.
+ * Minecraft keeps these private, but comparing them directly is a lot cheaper than comparing every block state.
+ */
+final class PalettedContainerAccess {
+
+    private static final VarHandle DATA;
+    private static final MethodHandle STORAGE;
+    private static final MethodHandle PALETTE;
+
+    static {
+        try {
+            Class<?> dataClass = Class.forName(PalettedContainer.class.getName() + "$Data");
+
+            MethodHandles.Lookup containerLookup = MethodHandles.privateLookupIn(PalettedContainer.class, MethodHandles.lookup());
+            MethodHandles.Lookup dataLookup = MethodHandles.privateLookupIn(dataClass, MethodHandles.lookup());
+
+            DATA = containerLookup.findVarHandle(PalettedContainer.class, "data", dataClass);
+            STORAGE = dataLookup.findVirtual(dataClass, "storage", MethodType.methodType(BitStorage.class));
+            PALETTE = dataLookup.findVirtual(dataClass, "palette", MethodType.methodType(Palette.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private PalettedContainerAccess() {}
+
+    /**
+     * Gets the current data of the container, the storage and palette of one data object always belong together.
+     *
+     * @param container the container to get the data from
+     * @return the internal data object of the container
+     */
+    static Object getData(PalettedContainer<?> container) {
+        return DATA.getVolatile(container);
+    }
+
+    static BitStorage getStorage(Object data) {
+        try {
+            return (BitStorage) STORAGE.invoke(data);
+        } catch (Throwable e) {
+            throw new IllegalStateException("Unable to read the storage of a paletted container", e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> Palette<T> getPalette(Object data) {
+        try {
+            return (Palette<T>) PALETTE.invoke(data);
+        } catch (Throwable e) {
+            throw new IllegalStateException("Unable to read the palette of a paletted container", e);
+        }
+    }
+}
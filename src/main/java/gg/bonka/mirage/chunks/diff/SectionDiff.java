@@ -0,0 +1,207 @@
+package gg.bonka.mirage.chunks.diff;
+
+import it.unimi.dsi.fastutil.shorts.ShortOpenHashSet;
+import it.unimi.dsi.fastutil.shorts.ShortSet;
+import it.unimi.dsi.fastutil.shorts.ShortSets;
+import net.minecraft.util.BitStorage;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.GlobalPalette;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import net.minecraft.world.level.chunk.Palette;
+import net.minecraft.world.level.chunk.PalettedContainer;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * Compares the block states of two chunk sections, and finds the exact positions that differ.
+ * <br><br>
+ * The comparison works on the palettes and the packed data storage of the sections instead of on every single block state.
+ * Sections with the same palette are compared 64 bits at a time, and only differing words are unpacked.
+ * Block states are compared as a whole, so a different rotation or waterlogged state also counts as a difference.
+ */
+public final class SectionDiff {
+
+    public static final int SECTION_SIZE = 4096;
+
+    private static final ShortSet ALL_POSITIONS;
+
+    static {
+        ShortOpenHashSet positions = new ShortOpenHashSet(SECTION_SIZE);
+
+        for (int i = 0; i < SECTION_SIZE; i++) {
+            positions.add(toPackedPosition(i));
+        }
+
+        ALL_POSITIONS = ShortSets.unmodifiable(positions);
+    }
+
+    private SectionDiff() {}
+
+    /**
+     * Checks whether two sections contain exactly the same block states.
+     *
+     * @param section the first section
+     * @param previousSection the second section, null is treated as a section that differs everywhere
+     * @return true when all block states are the same
+     */
+    public static boolean isSameSection(LevelChunkSection section, @Nullable LevelChunkSection previousSection) {
+        return diff(section, previousSection, true).isEmpty();
+    }
+
+    /**
+     * Gets the positions of all blocks that differ between the two sections.
+     * The positions are packed the same way as in a {@code ClientboundSectionBlocksUpdatePacket}.
+     *
+     * @param section the section that should be rendered
+     * @param previousSection the section the client currently has, null is treated as a section that differs everywhere
+     * @return the packed positions of all differing blocks, empty when the sections are the same
+     */
+    public static ShortSet getChangedPositions(LevelChunkSection section, @Nullable LevelChunkSection previousSection) {
+        return diff(section, previousSection, false);
+    }
+
+    /**
+     * @return a set containing the packed positions of every block in a section
+     */
+    public static ShortSet getAllPositions() {
+        return ALL_POSITIONS;
+    }
+
+    /**
+     * Packs an index of a paletted container (y, z, x order) into a section relative position (x, z, y order).
+     *
+     * @param index the index in the paletted container
+     * @return the packed section relative position
+     */
+    public static short toPackedPosition(int index) {
+        int x = index & 15;
+        int z = (index >> 4) & 15;
+        int y = (index >> 8) & 15;
+
+        return (short) (x << 8 | z << 4 | y);
+    }
+
+    private static ShortSet diff(LevelChunkSection section, @Nullable LevelChunkSection previousSection, boolean stopAtFirst) {
+        if(section == previousSection)
+            return ShortSets.EMPTY_SET;
+
+        if(previousSection == null)
+            return ALL_POSITIONS;
+
+        PalettedContainer<BlockState> states = section.getStates();
+        PalettedContainer<BlockState> previousStates = previousSection.getStates();
+
+        if(states == previousStates || (section.hasOnlyAir() && previousSection.hasOnlyAir()))
+            return ShortSets.EMPTY_SET;
+
+        Object data = PalettedContainerAccess.getData(states);
+        Object previousData = PalettedContainerAccess.getData(previousStates);
+
+        BitStorage storage = PalettedContainerAccess.getStorage(data);
+        BitStorage previousStorage = PalettedContainerAccess.getStorage(previousData);
+        Palette<BlockState> palette = PalettedContainerAccess.getPalette(data);
+        Palette<BlockState> previousPalette = PalettedContainerAccess.getPalette(previousData);
+
+        if(storage.getBits() == previousStorage.getBits() && isSamePalette(palette, previousPalette))
+            return diffSamePalette(storage, previousStorage, stopAtFirst);
+
+        return diffRemapped(storage, palette, previousStorage, previousPalette, stopAtFirst);
+    }
+
+    private static boolean isSamePalette(Palette<BlockState> palette, Palette<BlockState> previousPalette) {
+        if(palette == previousPalette || (palette instanceof GlobalPalette && previousPalette instanceof GlobalPalette))
+            return true;
+
+        if(palette.getSize() != previousPalette.getSize())
+            return false;
+
+        for(int id = 0; id < palette.getSize(); id++) {
+            if(palette.valueFor(id) != previousPalette.valueFor(id))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Both sections use the same ids for the same states, so the packed data can be compared directly.
+     */
+    private static ShortSet diffSamePalette(BitStorage storage, BitStorage previousStorage, boolean stopAtFirst) {
+        long[] raw = storage.getRaw();
+        long[] previousRaw = previousStorage.getRaw();
+
+        // Single value palettes don't store any data at all
+        if(storage.getBits() == 0 || Arrays.equals(raw, previousRaw))
+            return ShortSets.EMPTY_SET;
+
+        int valuesPerLong = 64 / storage.getBits();
+        ShortSet positions = new ShortOpenHashSet();
+
+        for(int word = 0; word < raw.length; word++) {
+            if(raw[word] == previousRaw[word])
+                continue;
+
+            int end = Math.min((word + 1) * valuesPerLong, SECTION_SIZE);
+
+            for(int index = word * valuesPerLong; index < end; index++) {
+                if(storage.get(index) == previousStorage.get(index))
+                    continue;
+
+                positions.add(toPackedPosition(index));
+
+                if(stopAtFirst)
+                    return positions;
+            }
+        }
+
+        return positions;
+    }
+
+    /**
+     * The sections use different palettes, so the ids of the previous palette are translated to ids of the new palette first.
+     * States that don't exist in the new palette translate to -1, which never matches.
+     */
+    private static ShortSet diffRemapped(BitStorage storage, Palette<BlockState> palette, BitStorage previousStorage, Palette<BlockState> previousPalette, boolean stopAtFirst) {
+        // A translation table for the global palette would be larger than the section itself
+        if(previousPalette.getSize() > SECTION_SIZE)
+            return diffStates(storage, palette, previousStorage, previousPalette, stopAtFirst);
+
+        int[] translation = new int[previousPalette.getSize()];
+
+        for(int previousId = 0; previousId < translation.length; previousId++) {
+            BlockState state = previousPalette.valueFor(previousId);
+            translation[previousId] = palette.maybeHas(candidate -> candidate == state) ? palette.idFor(state) : -1;
+        }
+
+        ShortSet positions = new ShortOpenHashSet();
+
+        for(int index = 0; index < SECTION_SIZE; index++) {
+            if(storage.get(index) == translation[previousStorage.get(index)])
+                continue;
+
+            positions.add(toPackedPosition(index));
+
+            if(stopAtFirst)
+                return positions;
+        }
+
+        return positions;
+    }
+
+    private static ShortSet diffStates(BitStorage storage, Palette<BlockState> palette, BitStorage previousStorage, Palette<BlockState> previousPalette, boolean stopAtFirst) {
+        ShortSet positions = new ShortOpenHashSet();
+
+        for(int index = 0; index < SECTION_SIZE; index++) {
+            if(palette.valueFor(storage.get(index)) == previousPalette.valueFor(previousStorage.get(index)))
+                continue;
+
+            positions.add(toPackedPosition(index));
+
+            if(stopAtFirst)
+                return positions;
+        }
+
+        return positions;
+    }
+}
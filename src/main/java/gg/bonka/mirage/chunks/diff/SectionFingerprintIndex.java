@@ -0,0 +1,335 @@
+package gg.bonka.mirage.chunks.diff;
+
+import gg.bonka.mirage.chunks.ChunkUtil;
+import gg.bonka.mirage.misc.ConsoleLogger;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.SharedConstants;
+import net.minecraft.util.BitStorage;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.GlobalPalette;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import net.minecraft.world.level.chunk.Palette;
+import org.bukkit.World;
+
+import java.io.*;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps a content hash (fingerprint) of every chunk section of the worlds involved in rendering.
+ * Two sections with the same fingerprint contain the same block states, so a render switch between
+ * two copies of the same template only has to diff the few sections that actually differ.
+ * <br><br>
+ * Fingerprints are computed the first time a section is needed, and are dropped when a block in that section changes,
+ * so only the changed sections get hashed again. The index of a world can be saved next to the saved world,
+ * so it is warm after a restart.
+ * <br><br>
+ * Block changes invalidate the changed section both right away and a tick later, since the block events are called before the change.
+ * Changes that are made without calling any Bukkit block event (like WorldEdit) have to be reported through the
+ * {@link gg.bonka.mirage.chunks.BlockChangeTracker BlockChangeTracker}, or the world should be invalidated.
+ */
+public class SectionFingerprintIndex {
+
+    public static final String FILE_NAME = "mirage-fingerprints.dat";
+
+    private static final int FILE_MAGIC = 0x4D495246; // MIRF
+    private static final int FILE_VERSION = 1;
+
+    public static final long UNKNOWN = 0L;
+    private static final long AIR = 1L;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static final int ALL_SECTIONS = -1;
+
+    private final Map<String, Long2ObjectMap<long[]>> worlds = new ConcurrentHashMap<>();
+
+    // Block events are called before the block is changed, so changed sections get invalidated again a tick later.
+    // A fingerprint computed from a copy made in between would describe the old blocks, the stamp keeps it from being stored.
+    // Only used on the main thread.
+    private final Set<PendingInvalidation> pendingInvalidations = new HashSet<>();
+
+    // Increased on every invalidation of a world, fingerprints computed from older copies of that world are never stored.
+    private final Map<String, AtomicLong> stamps = new ConcurrentHashMap<>();
+
+    /**
+     * Gets the fingerprint of a section without computing it.
+     *
+     * @param world the world the chunk belongs to
+     * @param chunkX the x-coordinate of the chunk
+     * @param chunkZ the z-coordinate of the chunk
+     * @param sectionIndex the index of the section in the chunk
+     * @return the fingerprint of the section, or {@link #UNKNOWN} when it isn't known
+     */
+    public long getKnownFingerprint(World world, int chunkX, int chunkZ, int sectionIndex) {
+        Long2ObjectMap<long[]> chunks = worlds.get(world.getName());
+
+        if(chunks == null)
+            return UNKNOWN;
+
+        synchronized (chunks) {
+            long[] fingerprints = chunks.get(ChunkUtil.getChunkKey(chunkX, chunkZ));
+
+            if(fingerprints == null || sectionIndex >= fingerprints.length)
+                return UNKNOWN;
+
+            return fingerprints[sectionIndex];
+        }
+    }
+
+    /**
+     * Gets the current invalidation stamp of a world. Take the stamp before copying sections of the world,
+     * and pass it to {@link #putFingerprint} when storing a fingerprint computed from that copy.
+     *
+     * @param world the world to get the stamp for
+     * @return the current stamp of the world
+     */
+    public long getStamp(World world) {
+        return stamps.computeIfAbsent(world.getName(), name -> new AtomicLong()).get();
+    }
+
+    /**
+     * Stores a fingerprint that was computed from a copy of a section, usually on another thread.
+     * The fingerprint is discarded when the world was invalidated after the copy was made.
+     *
+     * @param world the world the chunk belongs to
+     * @param chunkX the x-coordinate of the chunk
+     * @param chunkZ the z-coordinate of the chunk
+     * @param sectionIndex the index of the section in the chunk
+     * @param sectionCount the amount of sections in the chunk
+     * @param fingerprint the computed fingerprint
+     * @param stamp the stamp of the world at the moment the section was copied
+     */
+    public void putFingerprint(World world, int chunkX, int chunkZ, int sectionIndex, int sectionCount, long fingerprint, long stamp) {
+        Long2ObjectMap<long[]> chunks = worlds.computeIfAbsent(world.getName(), name -> new Long2ObjectOpenHashMap<>());
+        long chunkKey = ChunkUtil.getChunkKey(chunkX, chunkZ);
+
+        synchronized (chunks) {
+            if(getStamp(world) != stamp)
+                return;
+
+            long[] fingerprints = chunks.get(chunkKey);
+
+            if(fingerprints == null || fingerprints.length != sectionCount) {
+                fingerprints = new long[sectionCount];
+                chunks.put(chunkKey, fingerprints);
+            }
+
+            fingerprints[sectionIndex] = fingerprint;
+        }
+    }
+
+    /**
+     * Drops the fingerprint of the section containing the given block, both right away and a tick later.
+     *
+     * @param world the world the block is in
+     * @param x the x-coordinate of the block
+     * @param y the y-coordinate of the block
+     * @param z the z-coordinate of the block
+     */
+    public void invalidateBlock(World world, int x, int y, int z) {
+        // Without a stamp no section of the world was ever copied, so there's nothing to drop
+        if(!stamps.containsKey(world.getName()))
+            return;
+
+        PendingInvalidation invalidation = new PendingInvalidation(world.getName(), ChunkUtil.getChunkKey(x >> 4, z >> 4), (y >> 4) - (world.getMinHeight() >> 4));
+
+        invalidate(invalidation);
+        pendingInvalidations.add(invalidation);
+    }
+
+    /**
+     * Drops the fingerprints of all sections of the given chunk, both right away and a tick later.
+     *
+     * @param world the world the chunk is in
+     * @param chunkX the x-coordinate of the chunk
+     * @param chunkZ the z-coordinate of the chunk
+     */
+    public void invalidateChunk(World world, int chunkX, int chunkZ) {
+        if(!stamps.containsKey(world.getName()))
+            return;
+
+        PendingInvalidation invalidation = new PendingInvalidation(world.getName(), ChunkUtil.getChunkKey(chunkX, chunkZ), ALL_SECTIONS);
+
+        invalidate(invalidation);
+        pendingInvalidations.add(invalidation);
+    }
+
+    /**
+     * Drops all fingerprints of the given world.
+     *
+     * @param world the world to invalidate
+     */
+    public void invalidateWorld(World world) {
+        AtomicLong stamp = stamps.get(world.getName());
+
+        if(stamp != null)
+            stamp.incrementAndGet();
+
+        worlds.remove(world.getName());
+    }
+
+    /**
+     * Applies the pending invalidations of the previous tick, should be called once every tick.
+     */
+    public void tick() {
+        if(pendingInvalidations.isEmpty())
+            return;
+
+        pendingInvalidations.forEach(this::invalidate);
+        pendingInvalidations.clear();
+    }
+
+    /**
+     * Saves all known fingerprints of a world.
+     *
+     * @param worldName the name of the world to save
+     * @param file the file to save the fingerprints to
+     * @throws IOException if an I/O error occurs while writing the file
+     */
+    public void save(String worldName, File file) throws IOException {
+        Long2ObjectMap<long[]> chunks = worlds.get(worldName);
+
+        if(chunks == null)
+            return;
+
+        Long2ObjectMap<long[]> copy;
+
+        synchronized (chunks) {
+            copy = new Long2ObjectOpenHashMap<>(chunks.size());
+
+            for(Long2ObjectMap.Entry<long[]> entry : chunks.long2ObjectEntrySet())
+                copy.put(entry.getLongKey(), entry.getValue().clone());
+        }
+
+        try(DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file))))) {
+            output.writeInt(FILE_MAGIC);
+            output.writeInt(FILE_VERSION);
+            output.writeInt(SharedConstants.getCurrentVersion().getDataVersion().getVersion());
+            output.writeInt(Block.BLOCK_STATE_REGISTRY.size());
+            output.writeInt(copy.size());
+
+            for(Long2ObjectMap.Entry<long[]> entry : copy.long2ObjectEntrySet()) {
+                output.writeLong(entry.getLongKey());
+                output.writeShort(entry.getValue().length);
+
+                for(long fingerprint : entry.getValue())
+                    output.writeLong(fingerprint);
+            }
+        }
+    }
+
+    /**
+     * Loads the saved fingerprints of a world, replacing the fingerprints currently known for that world.
+     * The file is ignored when it was written by another Minecraft version, since block state ids may have changed.
+     *
+     * @param worldName the name of the world to load the fingerprints for
+     * @param file the file to load the fingerprints from
+     */
+    public void load(String worldName, File file) {
+        if(!file.exists())
+            return;
+
+        try(DataInputStream input = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))) {
+            if(input.readInt() != FILE_MAGIC || input.readInt() != FILE_VERSION)
+                return;
+
+            if(input.readInt() != SharedConstants.getCurrentVersion().getDataVersion().getVersion() || input.readInt() != Block.BLOCK_STATE_REGISTRY.size())
+                return;
+
+            int chunkCount = input.readInt();
+            Long2ObjectMap<long[]> chunks = new Long2ObjectOpenHashMap<>(chunkCount);
+
+            for(int i = 0; i < chunkCount; i++) {
+                long chunkKey = input.readLong();
+                long[] fingerprints = new long[input.readShort()];
+
+                for(int section = 0; section < fingerprints.length; section++)
+                    fingerprints[section] = input.readLong();
+
+                chunks.put(chunkKey, fingerprints);
+            }
+
+            worlds.put(worldName, chunks);
+        } catch (IOException e) {
+            ConsoleLogger.error(String.format("Failed to load the section fingerprints of %s: %s", worldName, e));
+        }
+    }
+
+    private void invalidate(PendingInvalidation invalidation) {
+        AtomicLong stamp = stamps.get(invalidation.worldName());
+
+        if(stamp != null)
+            stamp.incrementAndGet();
+
+        Long2ObjectMap<long[]> chunks = worlds.get(invalidation.worldName());
+
+        if(chunks == null)
+            return;
+
+        synchronized (chunks) {
+            if(invalidation.sectionIndex() == ALL_SECTIONS) {
+                chunks.remove(invalidation.chunkKey());
+                return;
+            }
+
+            long[] fingerprints = chunks.get(invalidation.chunkKey());
+
+            if(fingerprints != null && invalidation.sectionIndex() >= 0 && invalidation.sectionIndex() < fingerprints.length)
+                fingerprints[invalidation.sectionIndex()] = UNKNOWN;
+        }
+    }
+
+    /**
+     * Hashes all block states of a section, using the global block state ids.
+     *
+     * @param section the section to hash
+     * @return the fingerprint of the section, never {@code UNKNOWN}
+     */
+    public static long computeFingerprint(LevelChunkSection section) {
+        if(section == null || section.hasOnlyAir())
+            return AIR;
+
+        Object data = PalettedContainerAccess.getData(section.getStates());
+        BitStorage storage = PalettedContainerAccess.getStorage(data);
+        Palette<BlockState> palette = PalettedContainerAccess.getPalette(data);
+
+        // The global palette already uses the global ids
+        int[] globalIds = null;
+
+        if(!(palette instanceof GlobalPalette)) {
+            globalIds = new int[palette.getSize()];
+
+            for(int id = 0; id < globalIds.length; id++)
+                globalIds[id] = Block.getId(palette.valueFor(id));
+        }
+
+        long hash = FNV_OFFSET;
+
+        for(int index = 0; index < SectionDiff.SECTION_SIZE; index++) {
+            int paletteId = storage.get(index);
+
+            hash ^= globalIds == null ? paletteId : globalIds[paletteId];
+            hash *= FNV_PRIME;
+        }
+
+        // Final avalanche, so similar sections don't end up with similar fingerprints
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+
+        return hash == UNKNOWN || hash == AIR ? hash + 2 : hash;
+    }
+
+    private record PendingInvalidation(String worldName, long chunkKey, int sectionIndex) {}
+}
@@ -4,15 +4,9 @@ import com.comphenix.protocol.PacketType;
 import com.comphenix.protocol.events.PacketContainer;
 import com.comphenix.protocol.wrappers.WrappedLevelChunkData;
 import gg.bonka.mirage.chunks.ChunkUtil;
-import io.papermc.paper.antixray.ChunkPacketInfo;
 import lombok.Getter;
-import net.minecraft.network.protocol.game.ClientboundLevelChunkPacketData;
-import net.minecraft.network.protocol.game.ClientboundLevelChunkWithLightPacket;
-import net.minecraft.server.level.ServerChunkCache;
-import net.minecraft.world.level.block.state.BlockState;
-import net.minecraft.world.level.chunk.LevelChunk;
 import org.bukkit.World;
-import org.bukkit.craftbukkit.CraftWorld;
+import org.jetbrains.annotations.Nullable;
 
 @Getter
 public class ChunkPacket extends PacketContainer {
@@ -32,30 +26,32 @@ public class ChunkPacket extends PacketContainer {
      * @param world the world containing the chunk to construct the packet from
      */
     public ChunkPacket(int x, int z, World world) {
+        this(x, z, world, ChunkPacketData.create(world, x, z));
+    }
+
+    /**
+     * Represents a packet for sending already prepared chunk data to clients.
+     *
+     * @param x the x-coordinate of the chunk to be sent
+     * @param z the z-coordinate of the chunk to be sent
+     * @param world the world the chunk data was prepared from
+     * @param data the prepared chunk and light data, the packet will be invalid when this is null
+     */
+    public ChunkPacket(int x, int z, World world, @Nullable ChunkPacketData data) {
         super(PacketType.Play.Server.MAP_CHUNK);
         this.world = world;
         this.chunkKey = ChunkUtil.getChunkKey(x, z);
 
-        ServerChunkCache chunkCache = ((CraftWorld) world).getHandle().getChunkSource();
-        LevelChunk levelChunk = chunkCache.getChunk(x, z, !chunkCache.hasChunk(x, z));
-
-        if(levelChunk == null) {
+        if(data == null) {
             this.isValid = false;
             return;
         }
 
-        ClientboundLevelChunkWithLightPacket chunkWithLightPacket = new ClientboundLevelChunkWithLightPacket(levelChunk, levelChunk.getLevel().getLightEngine(), null, null, false);
-
-        ChunkPacketInfo<BlockState> chunkPacketInfo = new ChunkPacketInfo<>(chunkWithLightPacket, levelChunk);
-        ClientboundLevelChunkPacketData chunkPacket = new ClientboundLevelChunkPacketData(levelChunk, chunkPacketInfo);
-
-        WrappedLevelChunkData.ChunkData chunkData = new WrappedLevelChunkData.ChunkData(chunkPacket);
-
         getIntegers().write(0, x);
         getIntegers().write(1, z);
 
-        getLevelChunkData().write(0, chunkData);
-        getLightUpdateData().write(0, new WrappedLevelChunkData.LightData(chunkWithLightPacket.getLightData()));
+        getLevelChunkData().write(0, new WrappedLevelChunkData.ChunkData(data.getChunkData()));
+        getLightUpdateData().write(0, new WrappedLevelChunkData.LightData(data.getLightData()));
 
         this.isValid = true;
     }
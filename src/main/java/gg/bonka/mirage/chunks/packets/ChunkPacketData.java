@@ -0,0 +1,65 @@
+package gg.bonka.mirage.chunks.packets;
+
+import io.papermc.paper.antixray.ChunkPacketInfo;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import net.minecraft.network.protocol.game.ClientboundLevelChunkPacketData;
+import net.minecraft.network.protocol.game.ClientboundLevelChunkWithLightPacket;
+import net.minecraft.network.protocol.game.ClientboundLightUpdatePacketData;
+import net.minecraft.server.level.ServerChunkCache;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.LevelChunk;
+import org.bukkit.World;
+import org.bukkit.craftbukkit.CraftWorld;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * The prepared payload of a {@link ChunkPacket}, the encoded chunk and its light data.
+ * Both are never modified after construction, so one instance can be shared by the packets of many players.
+ */
+@Getter
+@AllArgsConstructor
+public class ChunkPacketData {
+
+    private final ClientboundLevelChunkPacketData chunkData;
+    private final ClientboundLightUpdatePacketData lightData;
+
+    /**
+     * Encodes the chunk at the given coordinates, loading it when it isn't loaded yet.
+     *
+     * @param world the world containing the chunk
+     * @param x the x-coordinate of the chunk
+     * @param z the z-coordinate of the chunk
+     * @return the prepared payload, or null when the chunk could not be loaded
+     */
+    public static @Nullable ChunkPacketData create(World world, int x, int z) {
+        ServerChunkCache chunkCache = ((CraftWorld) world).getHandle().getChunkSource();
+        LevelChunk levelChunk = chunkCache.getChunk(x, z, !chunkCache.hasChunk(x, z));
+
+        return levelChunk == null ? null : create(levelChunk);
+    }
+
+    /**
+     * Encodes the chunk at the given coordinates, but only when it's already loaded.
+     * Unlike {@link #create(World, int, int)} this never blocks on loading or generating the chunk, and can be called from any thread.
+     *
+     * @param world the world containing the chunk
+     * @param x the x-coordinate of the chunk
+     * @param z the z-coordinate of the chunk
+     * @return the prepared payload, or null when the chunk isn't loaded
+     */
+    public static @Nullable ChunkPacketData createIfLoaded(World world, int x, int z) {
+        LevelChunk levelChunk = ((CraftWorld) world).getHandle().getChunkSource().getChunkNow(x, z);
+
+        return levelChunk == null ? null : create(levelChunk);
+    }
+
+    private static ChunkPacketData create(LevelChunk levelChunk) {
+        ClientboundLevelChunkWithLightPacket chunkWithLightPacket = new ClientboundLevelChunkWithLightPacket(levelChunk, levelChunk.getLevel().getLightEngine(), null, null, false);
+
+        ChunkPacketInfo<BlockState> chunkPacketInfo = new ChunkPacketInfo<>(chunkWithLightPacket, levelChunk);
+        ClientboundLevelChunkPacketData chunkPacket = new ClientboundLevelChunkPacketData(levelChunk, chunkPacketInfo);
+
+        return new ChunkPacketData(chunkPacket, chunkWithLightPacket.getLightData());
+    }
+}
@@ -0,0 +1,106 @@
+package gg.bonka.mirage.chunks.packets;
+
+import com.comphenix.protocol.PacketType;
+import com.comphenix.protocol.injector.netty.WirePacket;
+import io.netty.buffer.Unpooled;
+import net.minecraft.network.FriendlyByteBuf;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Builds a light update packet for some sections of a chunk from already copied light arrays,
+ * so the packet can be encoded on any thread without reading the light engine.
+ * <br><br>
+ * Sections have to be added from the bottom up. Light section indices start one section below the lowest block section.
+ */
+public class LightPacket {
+
+    private final int chunkX;
+    private final int chunkZ;
+
+    private final BitSet skyMask = new BitSet();
+    private final BitSet blockMask = new BitSet();
+    private final BitSet emptySkyMask = new BitSet();
+    private final BitSet emptyBlockMask = new BitSet();
+
+    private final List<byte[]> skyUpdates = new ArrayList<>();
+    private final List<byte[]> blockUpdates = new ArrayList<>();
+
+    /**
+     * @param chunkX the x-coordinate of the chunk
+     * @param chunkZ the z-coordinate of the chunk
+     */
+    public LightPacket(int chunkX, int chunkZ) {
+        this.chunkX = chunkX;
+        this.chunkZ = chunkZ;
+    }
+
+    /**
+     * @param lightSectionIndex the index of the light section
+     * @param data the sky light of the section, empty when the section has no sky light, or null when there is no data
+     */
+    public void setSkyLight(int lightSectionIndex, @Nullable byte[] data) {
+        set(lightSectionIndex, data, skyMask, emptySkyMask, skyUpdates);
+    }
+
+    /**
+     * @param lightSectionIndex the index of the light section
+     * @param data the block light of the section, empty when the section has no block light, or null when there is no data
+     */
+    public void setBlockLight(int lightSectionIndex, @Nullable byte[] data) {
+        set(lightSectionIndex, data, blockMask, emptyBlockMask, blockUpdates);
+    }
+
+    private static void set(int lightSectionIndex, @Nullable byte[] data, BitSet mask, BitSet emptyMask, List<byte[]> updates) {
+        // Like vanilla, sections without data are in neither mask, only sections without light are sent as empty
+        if(data == null)
+            return;
+
+        if(data.length == 0) {
+            emptyMask.set(lightSectionIndex);
+            return;
+        }
+
+        mask.set(lightSectionIndex);
+        updates.add(data);
+    }
+
+    /**
+     * @return true if no section was added
+     */
+    public boolean isEmpty() {
+        return skyMask.isEmpty() && blockMask.isEmpty() && emptySkyMask.isEmpty() && emptyBlockMask.isEmpty();
+    }
+
+    /**
+     * Serializes the packet in the same layout as the vanilla light update packet.
+     *
+     * @return the serialized packet
+     */
+    public WirePacket encode() {
+        FriendlyByteBuf buffer = new FriendlyByteBuf(Unpooled.buffer());
+
+        try {
+            buffer.writeVarInt(chunkX);
+            buffer.writeVarInt(chunkZ);
+
+            buffer.writeBitSet(skyMask);
+            buffer.writeBitSet(blockMask);
+            buffer.writeBitSet(emptySkyMask);
+            buffer.writeBitSet(emptyBlockMask);
+
+            buffer.writeCollection(skyUpdates, FriendlyByteBuf::writeByteArray);
+            buffer.writeCollection(blockUpdates, FriendlyByteBuf::writeByteArray);
+
+            byte[] bytes = new byte[buffer.readableBytes()];
+            buffer.readBytes(bytes);
+
+            return new WirePacket(PacketType.Play.Server.LIGHT_UPDATE, bytes);
+        } finally {
+            buffer.release();
+        }
+    }
+}
@@ -2,23 +2,93 @@ package gg.bonka.mirage.chunks.packets;
 
 import com.comphenix.protocol.PacketType;
 import com.comphenix.protocol.events.PacketContainer;
-import it.unimi.dsi.fastutil.shorts.ShortArraySet;
+import com.comphenix.protocol.injector.netty.WirePacket;
+import gg.bonka.mirage.chunks.diff.SectionDiff;
+import it.unimi.dsi.fastutil.shorts.ShortIterator;
 import it.unimi.dsi.fastutil.shorts.ShortSet;
+import lombok.Getter;
 import net.minecraft.core.SectionPos;
 import net.minecraft.network.protocol.game.ClientboundSectionBlocksUpdatePacket;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.state.BlockState;
 import net.minecraft.world.level.chunk.LevelChunkSection;
 
+@Getter
 public class MultiBlockPacket extends PacketContainer {
 
-    private static final ShortSet ALL_POSITIONS = new ShortArraySet(4096);
+    private final SectionPos sectionPos;
+    private final int blockCount;
 
-    static {
-        for (short i = 0; i < 4096; i++) {
-            ALL_POSITIONS.add(i);
+    // The uncompressed size of the packet on the wire, including the packet id
+    private final int estimatedSize;
+
+    private volatile WirePacket wirePacket;
+
+    /**
+     * Creates a packet that updates every block of the section.
+     *
+     * @param sectionPos the position of the section on the client
+     * @param section the section to read the block states from
+     */
+    public MultiBlockPacket(SectionPos sectionPos, LevelChunkSection section) {
+        this(sectionPos, SectionDiff.getAllPositions(), section);
+    }
+
+    /**
+     * Creates a packet that only updates the given positions of the section.
+     *
+     * @param sectionPos the position of the section on the client
+     * @param positions the packed section relative positions to update
+     * @param section the section to read the block states from
+     */
+    public MultiBlockPacket(SectionPos sectionPos, ShortSet positions, LevelChunkSection section) {
+        super(PacketType.Play.Server.MULTI_BLOCK_CHANGE, new ClientboundSectionBlocksUpdatePacket(sectionPos, positions, section));
+        this.sectionPos = sectionPos;
+        this.blockCount = positions.size();
+        this.estimatedSize = estimateSize(positions, section);
+    }
+
+    /**
+     * Gets the serialized packet, serializing it on the first call.
+     * The same bytes can be written to any amount of players, without serializing the packet again.
+     *
+     * @return the serialized packet
+     */
+    public WirePacket getWirePacket() {
+        WirePacket serialized = wirePacket;
+
+        if(serialized == null)
+            wirePacket = serialized = WirePacket.fromPacket(this);
+
+        return serialized;
+    }
+
+    private static int estimateSize(ShortSet positions, LevelChunkSection section) {
+        int size = 1 + Long.BYTES + getVarIntSize(positions.size());
+
+        ShortIterator iterator = positions.iterator();
+        while(iterator.hasNext()) {
+            short position = iterator.nextShort();
+            BlockState state = section.getBlockState(SectionPos.sectionRelativeX(position), SectionPos.sectionRelativeY(position), SectionPos.sectionRelativeZ(position));
+
+            size += getVarLongSize((long) Block.getId(state) << 12 | position);
         }
+
+        return size;
     }
 
-    public MultiBlockPacket(SectionPos sectionPos, LevelChunkSection section) {
-        super(PacketType.Play.Server.MULTI_BLOCK_CHANGE, new ClientboundSectionBlocksUpdatePacket(sectionPos, ALL_POSITIONS, section));
+    private static int getVarIntSize(int value) {
+        return getVarLongSize(value & 0xFFFFFFFFL);
+    }
+
+    private static int getVarLongSize(long value) {
+        int size = 1;
+
+        while((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+
+        return size;
     }
 }
@@ -0,0 +1,110 @@
+package gg.bonka.mirage.chunks.render;
+
+import com.comphenix.protocol.PacketType;
+import com.comphenix.protocol.events.PacketContainer;
+import com.comphenix.protocol.injector.netty.WirePacket;
+import lombok.Getter;
+import net.minecraft.core.SectionPos;
+import net.minecraft.network.protocol.game.ClientboundChunksBiomesPacket;
+import net.minecraft.network.protocol.game.ClientboundChunksBiomesPacket.ChunkBiomeData;
+import org.bukkit.World;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replaces the biomes of one or more chunks with the biomes of the worlds that should be rendered,
+ * so grass, foliage, fog and sky colours match the rendered world.
+ * <br><br>
+ * The client ignores the biomes of chunks it doesn't have, so the update stays valid no matter what the client has in the chunks.
+ * The section position is only used to prioritize the update.
+ */
+public class BiomeUpdate extends SectionUpdate {
+
+    // The vanilla server never sends more chunks in a single biome packet than a chunk batch holds
+    public static final int MAX_CHUNKS = 64;
+
+    @Getter
+    private final List<ChunkBiomeData> chunks;
+
+    private final int estimatedSize;
+
+    private volatile WirePacket wirePacket;
+
+    /**
+     * @param world the real world the chunks are in
+     * @param sectionPos the position the update is prioritized by
+     * @param chunks the biomes of every chunk, at most {@value MAX_CHUNKS}
+     */
+    public BiomeUpdate(World world, SectionPos sectionPos, List<ChunkBiomeData> chunks) {
+        super(world, sectionPos, -1, 0, world, null, null);
+        this.chunks = chunks;
+
+        // The packet id and chunk count, and for every chunk its position and the length prefixed biomes
+        int size = 1 + 2;
+        for(ChunkBiomeData chunk : chunks)
+            size += Long.BYTES + 3 + chunk.buffer().length;
+
+        this.estimatedSize = size;
+    }
+
+    /**
+     * Merges the biome updates into updates of up to {@value MAX_CHUNKS} chunks each, in the given order, and serializes them.
+     * Every merged update is prioritized by its first chunk.
+     *
+     * @param updates the biome updates of single chunks, sorted by priority
+     * @return the merged updates
+     */
+    public static List<BiomeUpdate> merge(List<BiomeUpdate> updates) {
+        List<BiomeUpdate> merged = new ArrayList<>();
+
+        for(int start = 0; start < updates.size(); start += MAX_CHUNKS) {
+            List<BiomeUpdate> group = updates.subList(start, Math.min(updates.size(), start + MAX_CHUNKS));
+            List<ChunkBiomeData> chunks = new ArrayList<>();
+
+            for(BiomeUpdate update : group)
+                chunks.addAll(update.getChunks());
+
+            BiomeUpdate update = new BiomeUpdate(group.getFirst().getWorld(), group.getFirst().getSectionPos(), chunks);
+            update.getWirePacket();
+            merged.add(update);
+        }
+
+        return merged;
+    }
+
+    @Override
+    public int getEstimatedSize() {
+        return estimatedSize;
+    }
+
+    @Override
+    public boolean hasPacket() {
+        return true;
+    }
+
+    /**
+     * Gets the serialized packet, serializing it on the first call.
+     *
+     * @return the serialized packet
+     */
+    @Override
+    public WirePacket getWirePacket() {
+        WirePacket serialized = wirePacket;
+
+        if(serialized == null)
+            wirePacket = serialized = WirePacket.fromPacket(new PacketContainer(PacketType.Play.Server.CHUNKS_BIOMES, new ClientboundChunksBiomesPacket(chunks)));
+
+        return serialized;
+    }
+
+    @Override
+    public boolean isCurrent(ClientSectionState clientState) {
+        return true;
+    }
+
+    @Override
+    public void markApplied(ClientSectionState clientState) {
+        // Biomes aren't part of the client side state, the section updates of the chunks record the new world
+    }
+}
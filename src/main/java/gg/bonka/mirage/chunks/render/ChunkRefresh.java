@@ -0,0 +1,27 @@
+package gg.bonka.mirage.chunks.render;
+
+import gg.bonka.mirage.chunks.packets.ChunkPacketData;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.bukkit.World;
+
+/**
+ * A chunk that is resent as a whole, regardless of the world the client currently has in it.
+ * The chunk data is encoded on the main thread, the render workers only serialize the packet.
+ */
+@Getter
+@AllArgsConstructor
+public class ChunkRefresh {
+
+    // The real world the chunk is in
+    private final World world;
+
+    private final int chunkX;
+    private final int chunkZ;
+    private final int minSectionY;
+    private final int sectionCount;
+
+    private final World renderWorld;
+
+    private final ChunkPacketData data;
+}
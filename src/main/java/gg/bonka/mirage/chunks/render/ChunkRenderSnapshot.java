@@ -0,0 +1,61 @@
+package gg.bonka.mirage.chunks.render;
+
+import gg.bonka.mirage.chunks.cache.LightSectionCache.LightSection;
+import gg.bonka.mirage.chunks.packets.ChunkPacketData;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import net.minecraft.network.protocol.game.ClientboundChunksBiomesPacket.ChunkBiomeData;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import org.bukkit.World;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A read-only copy of the sections of a chunk in both the world that should be rendered and the world the client currently has.
+ * The client can have a different world in every section, for example when a previous update was only partially sent.
+ * Only the sections that may differ are copied, all other entries are null.
+ * Snapshots are taken on the main thread, and can then safely be diffed on any thread.
+ */
+@Getter
+@AllArgsConstructor
+public class ChunkRenderSnapshot {
+
+    private final int chunkX;
+    private final int chunkZ;
+    private final int minSectionY;
+
+    // The real world the chunk is in
+    private final World world;
+
+    private final World renderWorld;
+
+    // The world the client had in the section at that index when the snapshot was taken
+    private final World[] previousWorlds;
+
+    // The amount of sections the chunk has in the previous world of the section at that index
+    private final int[] previousSectionCounts;
+
+    private final LevelChunkSection[] sections;
+    private final LevelChunkSection[] previousSections;
+
+    // The light of the compared sections in both worlds
+    private final LightSection[] light;
+    private final LightSection[] previousLight;
+
+    // The biomes of the whole chunk in the render world, null when the biomes of all compared sections are the same
+    private final @Nullable ChunkBiomeData biomes;
+
+    // The chunk packet of the render world encoded on the main thread, null when it wasn't encoded
+    private final @Nullable ChunkPacketData chunkData;
+
+    // Whether the section at that index should be compared
+    private final boolean[] compare;
+
+    // Whether the fingerprints of the section at that index still have to be computed
+    private final boolean[] unknownFingerprints;
+
+    private final long renderWorldStamp;
+    private final long[] previousWorldStamps;
+
+    // The batch the snapshot was taken in, sharing the diffs with the other players of the same update
+    private final RenderBatch batch;
+}
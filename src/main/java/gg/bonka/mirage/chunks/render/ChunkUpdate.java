@@ -0,0 +1,75 @@
+package gg.bonka.mirage.chunks.render;
+
+import com.comphenix.protocol.injector.netty.WirePacket;
+import net.minecraft.core.SectionPos;
+import org.bukkit.World;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Replaces the whole chunk on the client with a chunk packet of the world that should be rendered, including its light.
+ * Used instead of the section updates of a chunk when the chunk packet is smaller on the wire.
+ * <br><br>
+ * The section position is only used to prioritize the update, the packet always covers every section of the chunk.
+ */
+public class ChunkUpdate extends SectionUpdate {
+
+    // The world the client had in every section when the chunk was diffed, null for sections that don't have to be checked
+    private final @Nullable World[] previousWorlds;
+
+    private final WirePacket wirePacket;
+
+    /**
+     * @param world the real world the chunk is in
+     * @param sectionPos the position the update is prioritized by
+     * @param sectionCount the amount of sections in the chunk
+     * @param renderWorld the world the chunk packet was encoded from
+     * @param previousWorlds the world the client must still have in every section, or null to always send the update
+     * @param wirePacket the serialized chunk packet
+     */
+    public ChunkUpdate(World world, SectionPos sectionPos, int sectionCount, World renderWorld, @Nullable World[] previousWorlds, WirePacket wirePacket) {
+        super(world, sectionPos, -1, sectionCount, renderWorld, null, null);
+        this.previousWorlds = previousWorlds;
+        this.wirePacket = wirePacket;
+    }
+
+    @Override
+    public int getEstimatedSize() {
+        return getEncodedSize(wirePacket);
+    }
+
+    @Override
+    public boolean hasPacket() {
+        return true;
+    }
+
+    @Override
+    public WirePacket getWirePacket() {
+        return wirePacket;
+    }
+
+    @Override
+    public boolean isCurrent(ClientSectionState clientState) {
+        if(previousWorlds == null)
+            return true;
+
+        for(int i = 0; i < previousWorlds.length; i++) {
+            if(previousWorlds[i] != null && clientState.getClientsideWorld(getWorld(), getChunkKey(), i) != previousWorlds[i])
+                return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    public void markApplied(ClientSectionState clientState) {
+        clientState.setClientsideChunk(getWorld(), getChunkKey(), getRenderWorld());
+    }
+
+    /**
+     * @param wirePacket the serialized packet
+     * @return the uncompressed size of the packet on the wire, including the packet id
+     */
+    public static int getEncodedSize(WirePacket wirePacket) {
+        return 1 + wirePacket.getBytes().length;
+    }
+}
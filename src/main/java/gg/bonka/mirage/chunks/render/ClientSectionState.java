@@ -0,0 +1,39 @@
+package gg.bonka.mirage.chunks.render;
+
+import org.bukkit.World;
+
+/**
+ * Keeps track of which world the client of a player has in every section it received.
+ * The state is only updated once a section update is actually sent, so an interrupted update can be resumed
+ * by diffing against what the client really has.
+ */
+public interface ClientSectionState {
+
+    /**
+     * @param world the real world the chunk is in
+     * @param chunkKey the key of the chunk
+     * @param sectionIndex the index of the section in the chunk
+     * @return the world the client currently has in the section
+     */
+    World getClientsideWorld(World world, long chunkKey, int sectionIndex);
+
+    /**
+     * Records that the client now has the given world in the section.
+     *
+     * @param world the real world the chunk is in
+     * @param chunkKey the key of the chunk
+     * @param sectionIndex the index of the section in the chunk
+     * @param sectionCount the amount of sections in the chunk
+     * @param clientsideWorld the world the client now has in the section
+     */
+    void setClientsideWorld(World world, long chunkKey, int sectionIndex, int sectionCount, World clientsideWorld);
+
+    /**
+     * Records that the client now has the given world in every section of the chunk, for example after receiving a chunk packet.
+     *
+     * @param world the real world the chunk is in
+     * @param chunkKey the key of the chunk
+     * @param clientsideWorld the world the client now has in the chunk
+     */
+    void setClientsideChunk(World world, long chunkKey, World clientsideWorld);
+}
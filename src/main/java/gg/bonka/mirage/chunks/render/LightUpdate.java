@@ -0,0 +1,73 @@
+package gg.bonka.mirage.chunks.render;
+
+import com.comphenix.protocol.injector.netty.WirePacket;
+import net.minecraft.core.SectionPos;
+import org.bukkit.World;
+
+/**
+ * Replaces the light of the sections of a chunk whose light differs between the world the client has and the world that should be rendered.
+ * Without it the client keeps the light of the previous world, so caves of the rendered world could show up fully lit.
+ * <br><br>
+ * The light doesn't change the client side state, the section updates of the same chunk do that.
+ * The section position is only used to prioritize the update.
+ */
+public class LightUpdate extends SectionUpdate {
+
+    // The world the client had in every compared section when the chunk was diffed, null for sections that weren't compared
+    private final World[] previousWorlds;
+
+    private final WirePacket wirePacket;
+
+    /**
+     * @param world the real world the chunk is in
+     * @param sectionPos the position the update is prioritized by
+     * @param sectionCount the amount of sections in the chunk
+     * @param renderWorld the world the light was copied from
+     * @param previousWorlds the world the client had in every compared section
+     * @param wirePacket the serialized light update packet
+     */
+    public LightUpdate(World world, SectionPos sectionPos, int sectionCount, World renderWorld, World[] previousWorlds, WirePacket wirePacket) {
+        super(world, sectionPos, -1, sectionCount, renderWorld, null, null);
+        this.previousWorlds = previousWorlds;
+        this.wirePacket = wirePacket;
+    }
+
+    @Override
+    public int getEstimatedSize() {
+        return ChunkUpdate.getEncodedSize(wirePacket);
+    }
+
+    @Override
+    public boolean hasPacket() {
+        return true;
+    }
+
+    @Override
+    public WirePacket getWirePacket() {
+        return wirePacket;
+    }
+
+    /**
+     * The light still applies while the client has either the previous or the rendered world in every compared section,
+     * the section updates can be sent before or after the light.
+     */
+    @Override
+    public boolean isCurrent(ClientSectionState clientState) {
+        for(int i = 0; i < previousWorlds.length; i++) {
+            if(previousWorlds[i] == null)
+                continue;
+
+            World clientsideWorld = clientState.getClientsideWorld(getWorld(), getChunkKey(), i);
+
+            if(clientsideWorld != previousWorlds[i] && clientsideWorld != getRenderWorld())
+                return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    public void markApplied(ClientSectionState clientState) {
+        // The section updates of the chunk record the new world
+    }
+}
@@ -0,0 +1,32 @@
+package gg.bonka.mirage.chunks.render;
+
+import gg.bonka.mirage.chunks.packets.MultiBlockPacket;
+import net.minecraft.core.SectionPos;
+import org.bukkit.World;
+
+/**
+ * Forwards the changed blocks of a visualizer section to a client that already has that visualizer in the section.
+ * <br><br>
+ * Unlike the updates of a render reload, a mirror update isn't the result of a diff against the client side state.
+ * A new render update doesn't compare sections the client already has in the right world, so it won't include the change either.
+ * That's why mirror updates are kept when the pending updates of the player are replaced or discarded.
+ */
+public class MirrorUpdate extends SectionUpdate {
+
+    /**
+     * @param world the real world the chunk is in
+     * @param sectionPos the position of the section
+     * @param sectionIndex the index of the section in the chunk
+     * @param sectionCount the amount of sections in the chunk
+     * @param visualizer the visualizer world the client has in the section
+     * @param packet the packet holding the changed blocks
+     */
+    public MirrorUpdate(World world, SectionPos sectionPos, int sectionIndex, int sectionCount, World visualizer, MultiBlockPacket packet) {
+        super(world, sectionPos, sectionIndex, sectionCount, visualizer, visualizer, packet);
+    }
+
+    @Override
+    public boolean isRetained() {
+        return true;
+    }
+}
@@ -0,0 +1,189 @@
+package gg.bonka.mirage.chunks.render;
+
+import lombok.Getter;
+import lombok.Setter;
+import net.minecraft.core.SectionPos;
+import org.bukkit.entity.Player;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The section updates that still have to be sent to a single player, owned by the {@link RenderScheduler}.
+ * The updates are kept sorted by the render priority, and are resorted when the player moves or turns.
+ * Updates are checked against the client side state of the player right before they are sent,
+ * so updates of chunks the client no longer has, or that were diffed against an outdated state, are dropped.
+ */
+class PlayerRenderQueue {
+
+    @Getter
+    private final Player player;
+
+    @Getter
+    private final RenderPacer pacer;
+
+    // The packets sent this tick, written together at the end of the tick
+    @Getter
+    private final RenderBundle bundle = new RenderBundle();
+
+    private final List<SectionUpdate> updates = new ArrayList<>();
+    private int index = 0;
+
+    private ClientSectionState clientState;
+
+    // Whether the queue holds a render reload, which gets a finish event once it's sent
+    @Getter
+    private boolean reloading;
+
+    private RenderView sortedView;
+    private int centerChunkX;
+    private int centerChunkZ;
+    private int viewDistance;
+
+    // The budget the pacer gave for the current tick, and how much of it was used
+    @Getter
+    @Setter
+    private int tickBudget;
+    @Getter
+    @Setter
+    private int sentThisTick;
+
+    // Deficit round-robin counter, the amount of bytes this player may still send before it has to wait for its next turn
+    @Getter
+    @Setter
+    private int deficit;
+
+    PlayerRenderQueue(Player player, RenderPacer pacer) {
+        this.player = player;
+        this.pacer = pacer;
+    }
+
+    /**
+     * Replaces the pending updates of this queue, except the ones that are retained.
+     * The retained updates are sent first, they are older and usually small.
+     *
+     * @param updates the updates to send, sorted by priority
+     * @param view the view the updates were sorted for
+     * @param clientState the client side state the updates were diffed against
+     */
+    void setUpdates(List<SectionUpdate> updates, RenderView view, ClientSectionState clientState) {
+        discard();
+
+        this.updates.addAll(updates);
+        this.sortedView = view;
+        this.clientState = clientState;
+        this.reloading = true;
+    }
+
+    /**
+     * Drops the pending updates of this queue except the ones that are retained, without finishing the render reload.
+     */
+    void discard() {
+        List<SectionUpdate> retained = new ArrayList<>();
+
+        for(int i = index; i < updates.size(); i++) {
+            if(updates.get(i).isRetained())
+                retained.add(updates.get(i));
+        }
+
+        this.updates.clear();
+        this.updates.addAll(retained);
+        this.index = 0;
+        this.reloading = false;
+    }
+
+    /**
+     * Adds updates to the pending updates of this queue, without replacing them.
+     *
+     * @param updates the updates to add
+     * @param priority the priority to sort the pending updates by
+     * @param view the current view of the player
+     * @param clientState the client side state the updates were built against
+     */
+    void addUpdates(List<SectionUpdate> updates, RenderPriority priority, RenderView view, ClientSectionState clientState) {
+        this.updates.addAll(updates);
+        this.sortedView = view;
+        this.clientState = clientState;
+
+        priority.sort(this.updates.subList(index, this.updates.size()), view);
+    }
+
+    /**
+     * Updates the view of the player, and sorts the remaining updates again when the player moved or turned enough since the last sort.
+     *
+     * @param priority the priority to sort the updates by
+     */
+    void prioritize(RenderPriority priority) {
+        RenderView view = RenderView.of(player);
+
+        centerChunkX = (int) Math.floor(view.getEyeX()) >> 4;
+        centerChunkZ = (int) Math.floor(view.getEyeZ()) >> 4;
+
+        // We add 1 because clients always keep an extra chunk in their cache.
+        viewDistance = player.getViewDistance() + 1;
+
+        if(sortedView != null && !view.differsFrom(sortedView))
+            return;
+
+        sortedView = view;
+        priority.sort(updates.subList(index, updates.size()), view);
+    }
+
+    /**
+     * Drops the updates at the head of the queue that can no longer be applied,
+     * because the chunk left the view of the player or the client no longer has the world the update was diffed against.
+     *
+     * @return the amount of dropped updates
+     */
+    int dropInvalid() {
+        int dropped = 0;
+
+        while(!isEmpty() && !isApplicable(updates.get(index))) {
+            updates.set(index++, null);
+            dropped++;
+        }
+
+        return dropped;
+    }
+
+    private boolean isApplicable(SectionUpdate update) {
+        if(update.getWorld() != player.getWorld())
+            return false;
+
+        SectionPos sectionPos = update.getSectionPos();
+
+        if(Math.abs(sectionPos.x() - centerChunkX) > viewDistance || Math.abs(sectionPos.z() - centerChunkZ) > viewDistance)
+            return false;
+
+        return update.isCurrent(clientState);
+    }
+
+    /**
+     * Records that the update was sent, so the client side state reflects the new world of the section.
+     *
+     * @param update the update that was sent
+     */
+    void markSent(SectionUpdate update) {
+        update.markApplied(clientState);
+    }
+
+    boolean isEmpty() {
+        return index >= updates.size();
+    }
+
+    int size() {
+        return updates.size() - index;
+    }
+
+    SectionUpdate peek() {
+        return updates.get(index);
+    }
+
+    SectionUpdate poll() {
+        SectionUpdate update = updates.get(index);
+
+        // Drop the reference, so sent updates can be garbage collected while the rest is still being sent
+        updates.set(index++, null);
+        return update;
+    }
+}
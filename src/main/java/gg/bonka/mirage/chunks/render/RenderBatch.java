@@ -0,0 +1,97 @@
+package gg.bonka.mirage.chunks.render;
+
+import com.comphenix.protocol.injector.netty.WirePacket;
+import gg.bonka.mirage.chunks.packets.MultiBlockPacket;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import org.bukkit.World;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * The work shared by the render updates of several players that are taken in the same tick, like all subscribers of a profile.
+ * <br><br>
+ * Every section is only copied once, no matter how many players need it, and every pair of sections is only diffed and encoded once.
+ * The resulting packets are shared between the queues of all players, and are sent to each of them without being serialized again.
+ */
+public class RenderBatch {
+
+    // Only used on the main thread, while taking the snapshots
+    private final Map<SectionKey, LevelChunkSection> copies = new HashMap<>();
+
+    // Used by the render workers, the work is done outside the map so workers that need other keys never wait for it
+    private final Map<DiffKey, CompletableFuture<MultiBlockPacket>> diffs = new ConcurrentHashMap<>();
+    private final Map<ChunkKey, CompletableFuture<WirePacket>> chunkPackets = new ConcurrentHashMap<>();
+
+    /**
+     * Copies the section, or returns the copy that was already made in this batch.
+     *
+     * @param world the world of the section
+     * @param chunkKey the key of the chunk
+     * @param sectionIndex the index of the section in the chunk
+     * @param section the section to copy
+     * @return the copy of the section
+     */
+    public LevelChunkSection copy(World world, long chunkKey, int sectionIndex, LevelChunkSection section) {
+        return copies.computeIfAbsent(new SectionKey(world, chunkKey, sectionIndex), key -> section.copy());
+    }
+
+    /**
+     * Builds the packet changing the section from the previous world to the render world, or returns the packet that was already built in this batch.
+     * Other workers that need the same packet wait for it, instead of building it again.
+     *
+     * @param renderWorld the world that should be rendered
+     * @param previousWorld the world the client has
+     * @param chunkKey the key of the chunk
+     * @param sectionIndex the index of the section in the chunk
+     * @param builder builds the packet, returning null when the sections are the same
+     * @return the packet, or null when the sections are the same
+     */
+    @Nullable MultiBlockPacket diff(World renderWorld, World previousWorld, long chunkKey, int sectionIndex, Supplier<MultiBlockPacket> builder) {
+        return memoize(diffs, new DiffKey(renderWorld, previousWorld, chunkKey, sectionIndex), builder);
+    }
+
+    /**
+     * Serializes the chunk packet of the render world, or returns the packet that was already serialized in this batch.
+     * Other workers that need the same packet wait for it, instead of serializing it again.
+     *
+     * @param renderWorld the world that should be rendered
+     * @param chunkKey the key of the chunk
+     * @param encoder serializes the packet
+     * @return the serialized packet
+     */
+    WirePacket encodeChunk(World renderWorld, long chunkKey, Supplier<WirePacket> encoder) {
+        return memoize(chunkPackets, new ChunkKey(renderWorld, chunkKey), encoder);
+    }
+
+    /**
+     * Computes the value of the key, unless another worker already started computing it, in which case that value is awaited.
+     */
+    private static <K, V> V memoize(Map<K, CompletableFuture<V>> values, K key, Supplier<V> supplier) {
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> existing = values.putIfAbsent(key, future);
+
+        if(existing != null)
+            return existing.join();
+
+        try {
+            V value = supplier.get();
+            future.complete(value);
+
+            return value;
+        } catch (RuntimeException | Error e) {
+            future.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    private record SectionKey(World world, long chunkKey, int sectionIndex) {}
+
+    private record DiffKey(World renderWorld, World previousWorld, long chunkKey, int sectionIndex) {}
+
+    private record ChunkKey(World renderWorld, long chunkKey) {}
+}
@@ -0,0 +1,70 @@
+package gg.bonka.mirage.chunks.render;
+
+import com.comphenix.protocol.PacketType;
+import com.comphenix.protocol.ProtocolLibrary;
+import com.comphenix.protocol.injector.netty.WirePacket;
+import io.netty.channel.Channel;
+import org.bukkit.entity.Player;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The render packets sent to a single player in one tick, written inside bundle packets with a single flush.
+ * <br><br>
+ * The client applies all packets of a bundle in the same frame, so a whole tick of section updates is re-meshed at once
+ * instead of one section at a time, and the server only flushes the connection once per tick instead of once per packet.
+ */
+class RenderBundle {
+
+    // The client rejects bundles with more packets than this
+    private static final int MAX_BUNDLE_SIZE = 4096;
+
+    private static final WirePacket DELIMITER = new WirePacket(PacketType.Play.Server.BUNDLE, new byte[0]);
+
+    private final List<WirePacket> packets = new ArrayList<>();
+
+    void add(WirePacket packet) {
+        packets.add(packet);
+    }
+
+    /**
+     * Writes all added packets to the player, and clears the bundle.
+     * A single packet is written as is, since a bundle wouldn't change anything.
+     *
+     * @param player the player to write the packets to
+     * @return the amount of bundles that were written
+     */
+    int write(Player player) {
+        if(packets.isEmpty())
+            return 0;
+
+        List<WirePacket> toWrite = List.copyOf(packets);
+        packets.clear();
+
+        Channel channel = RenderPacer.getChannel(player);
+
+        if(toWrite.size() == 1 || channel == null) {
+            for(WirePacket packet : toWrite)
+                ProtocolLibrary.getProtocolManager().sendWirePacket(player, packet);
+
+            return 0;
+        }
+
+        // Written in a single task on the event loop, the wire packets are serialized by ProtocolLib's encoder in the pipeline
+        channel.eventLoop().execute(() -> {
+            for(int start = 0; start < toWrite.size(); start += MAX_BUNDLE_SIZE - 1) {
+                channel.write(DELIMITER);
+
+                for(WirePacket packet : toWrite.subList(start, Math.min(toWrite.size(), start + MAX_BUNDLE_SIZE - 1)))
+                    channel.write(packet);
+
+                channel.write(DELIMITER);
+            }
+
+            channel.flush();
+        });
+
+        return (toWrite.size() + MAX_BUNDLE_SIZE - 2) / (MAX_BUNDLE_SIZE - 1);
+    }
+}
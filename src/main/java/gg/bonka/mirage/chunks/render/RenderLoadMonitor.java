@@ -0,0 +1,104 @@
+package gg.bonka.mirage.chunks.render;
+
+import com.destroystokyo.paper.event.server.ServerTickEndEvent;
+import gg.bonka.mirage.Mirage;
+import lombok.Getter;
+import org.bukkit.Bukkit;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.Listener;
+
+/**
+ * Measures the main thread time spent on rendering, and watches the server's MSPT.
+ * <br><br>
+ * When the server's MSPT exceeds the configured threshold, rendering gets throttled: realtime updates are deferred
+ * and the render bandwidth is lowered, until the MSPT drops back below 90% of the threshold.
+ * Even with headroom, rendering never uses more than the configured main thread time per tick.
+ */
+public class RenderLoadMonitor implements Listener {
+
+    // Smoothing of the averages, roughly the last 20 ticks have an influence
+    private static final double SMOOTHING = 0.1;
+    private static final double RESUME_FACTOR = 0.9;
+
+    private final double msptThreshold;
+    private final long maxRenderNanosPerTick;
+
+    private long renderNanosThisTick;
+
+    // The start of the timing that is currently running, 0 when nothing is being timed
+    private long timingStart;
+
+    @Getter
+    private double averageMspt;
+
+    @Getter
+    private double averageRenderMillis;
+
+    @Getter
+    private boolean throttled;
+
+    @Getter
+    private long totalDeferredUpdates;
+
+    @Getter
+    private long throttledTicks;
+
+    /**
+     * @param msptThreshold the MSPT above which rendering gets throttled
+     * @param maxRenderMillisPerTick the maximum amount of main thread time rendering may use per tick
+     */
+    public RenderLoadMonitor(double msptThreshold, double maxRenderMillisPerTick) {
+        this.msptThreshold = msptThreshold;
+        this.maxRenderNanosPerTick = (long) (maxRenderMillisPerTick * 1_000_000);
+
+        Bukkit.getPluginManager().registerEvents(this, Mirage.getInstance());
+    }
+
+    /**
+     * @return the start time, to be passed to {@link #stopTiming(long)}
+     */
+    public long startTiming() {
+        timingStart = System.nanoTime();
+        return timingStart;
+    }
+
+    /**
+     * Adds the time since the start time to the main thread time spent rendering this tick.
+     *
+     * @param start the time returned by {@link #startTiming()}
+     */
+    public void stopTiming(long start) {
+        renderNanosThisTick += System.nanoTime() - start;
+        timingStart = 0;
+    }
+
+    /**
+     * Includes the time of the timing that is currently running, so it can also be checked in between the work of a single update.
+     *
+     * @return whether more diff work may be started on the main thread this tick
+     */
+    public boolean hasTickBudget() {
+        long runningNanos = timingStart == 0 ? 0 : System.nanoTime() - timingStart;
+        return !throttled && renderNanosThisTick + runningNanos < maxRenderNanosPerTick;
+    }
+
+    /**
+     * Registers an update that was deferred because there was no budget left.
+     */
+    public void recordDeferred() {
+        totalDeferredUpdates++;
+    }
+
+    @EventHandler
+    public void onTickEnd(ServerTickEndEvent event) {
+        averageMspt += (event.getTickDuration() - averageMspt) * SMOOTHING;
+        averageRenderMillis += (renderNanosThisTick / 1_000_000d - averageRenderMillis) * SMOOTHING;
+        renderNanosThisTick = 0;
+
+        // The resume threshold is a bit lower, so rendering doesn't flip on and off every tick
+        throttled = throttled ? averageMspt > msptThreshold * RESUME_FACTOR : averageMspt > msptThreshold;
+
+        if(throttled)
+            throttledTicks++;
+    }
+}
@@ -0,0 +1,91 @@
+package gg.bonka.mirage.chunks.render;
+
+import io.netty.channel.Channel;
+import lombok.Getter;
+import org.bukkit.craftbukkit.entity.CraftPlayer;
+import org.bukkit.entity.Player;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Decides how many bytes of render packets a player is sent per tick.
+ * <br><br>
+ * The budget grows while the player's network channel keeps up, and is halved as soon as the channel
+ * stops being writable. High latency lowers the maximum budget, so slow clients aren't flooded into a timeout,
+ * while fast clients quickly get their world switch at the maximum rate.
+ */
+public class RenderPacer {
+
+    private final int minBytesPerTick;
+    private final int maxBytesPerTick;
+    private final int referencePing;
+
+    @Getter
+    private int bytesPerTick;
+
+    @Getter
+    private int bytesSentLastTick;
+
+    @Getter
+    private long totalBytesSent;
+
+    @Getter
+    private int ping;
+
+    /**
+     * @param minBytesPerTick the lowest budget, used when the channel is congested
+     * @param maxBytesPerTick the highest budget, used for clients with a ping at or below the reference ping
+     * @param referencePing the ping in milliseconds above which the maximum budget is lowered proportionally
+     */
+    public RenderPacer(int minBytesPerTick, int maxBytesPerTick, int referencePing) {
+        this.minBytesPerTick = minBytesPerTick;
+        this.maxBytesPerTick = Math.max(minBytesPerTick, maxBytesPerTick);
+        this.referencePing = Math.max(1, referencePing);
+        this.bytesPerTick = minBytesPerTick;
+    }
+
+    /**
+     * Adapts the budget to the current state of the player's connection, should be called once per tick before sending.
+     *
+     * @param player the player to get the budget for
+     * @return the amount of bytes that may be sent this tick, 0 when nothing should be sent
+     */
+    public int nextTickBudget(Player player) {
+        bytesSentLastTick = 0;
+        ping = player.getPing();
+
+        Channel channel = getChannel(player);
+
+        // The outgoing buffer is full, back off fast so the client can catch up.
+        if(channel != null && !channel.isWritable()) {
+            bytesPerTick = Math.max(minBytesPerTick, bytesPerTick / 2);
+            return 0;
+        }
+
+        double pingFactor = ping <= referencePing ? 1 : (double) referencePing / ping;
+        int ceiling = Math.max(minBytesPerTick, (int) (maxBytesPerTick * pingFactor));
+
+        bytesPerTick = Math.min(ceiling, bytesPerTick + Math.max(minBytesPerTick / 4, bytesPerTick / 8));
+
+        if(channel == null)
+            return bytesPerTick;
+
+        return (int) Math.max(1, Math.min(bytesPerTick, channel.bytesBeforeUnwritable()));
+    }
+
+    /**
+     * Registers bytes that were sent to the player.
+     *
+     * @param bytes the amount of bytes sent
+     */
+    public void recordSent(int bytes) {
+        bytesSentLastTick += bytes;
+        totalBytesSent += bytes;
+    }
+
+    static @Nullable Channel getChannel(Player player) {
+        if(!(player instanceof CraftPlayer craftPlayer) || craftPlayer.getHandle().connection == null)
+            return null;
+
+        return craftPlayer.getHandle().connection.connection.channel;
+    }
+}
@@ -0,0 +1,289 @@
+package gg.bonka.mirage.chunks.render;
+
+import com.comphenix.protocol.injector.netty.WirePacket;
+import gg.bonka.mirage.chunks.ChunkUtil;
+import gg.bonka.mirage.chunks.cache.LightSectionCache.LightSection;
+import gg.bonka.mirage.chunks.diff.SectionDiff;
+import gg.bonka.mirage.chunks.diff.SectionFingerprintIndex;
+import gg.bonka.mirage.chunks.packets.ChunkPacket;
+import gg.bonka.mirage.chunks.packets.ChunkPacketData;
+import gg.bonka.mirage.chunks.packets.LightPacket;
+import gg.bonka.mirage.chunks.packets.MultiBlockPacket;
+import it.unimi.dsi.fastutil.shorts.ShortSet;
+import lombok.Getter;
+import net.minecraft.core.SectionPos;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import org.bukkit.World;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+/**
+ * Diffs chunk snapshots and encodes the resulting section update packets on a pool of worker threads.
+ * The chunks are processed in parallel, the resulting updates are sorted by the render priority of the player.
+ * Chunks whose section updates would be larger than resending the whole chunk are resent as a chunk packet instead.
+ * <br><br>
+ * The workers never read from live chunks, everything they need is copied or encoded on the main thread first.
+ */
+public class RenderPipeline {
+
+    private final ForkJoinPool pool;
+    private final SectionFingerprintIndex fingerprintIndex;
+
+    @Getter
+    private final UpdateCostModel costModel = new UpdateCostModel();
+
+    /**
+     * @param threads the amount of worker threads, 0 or less uses half of the available processors
+     * @param fingerprintIndex the index to store the fingerprints computed by the workers in
+     */
+    public RenderPipeline(int threads, SectionFingerprintIndex fingerprintIndex) {
+        int parallelism = threads > 0 ? threads : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+        this.pool = new ForkJoinPool(parallelism);
+        this.fingerprintIndex = fingerprintIndex;
+    }
+
+    /**
+     * Diffs all snapshots and builds the section updates on the worker pool.
+     * The updates are sorted by the given priority, as seen from the given view.
+     * <br><br>
+     * <b>The returned future is not completed on the main thread!</b>
+     *
+     * @param snapshots the snapshots to diff
+     * @param priority the priority deciding the order of the updates
+     * @param view the view of the player the updates are sent to
+     * @return a future completing with the updates of all snapshots
+     */
+    public CompletableFuture<List<SectionUpdate>> build(List<ChunkRenderSnapshot> snapshots, RenderPriority priority, RenderView view) {
+        return CompletableFuture.supplyAsync(() -> {
+            List<SectionUpdate> updates = snapshots.parallelStream()
+                    .map(this::build)
+                    .flatMap(List::stream)
+                    .collect(Collectors.toCollection(ArrayList::new));
+
+            priority.sort(updates, view);
+
+            // The biomes of many chunks are sent in a single packet, the closest chunks together
+            List<BiomeUpdate> biomeUpdates = new ArrayList<>();
+            updates.removeIf(update -> update instanceof BiomeUpdate biomeUpdate && biomeUpdates.add(biomeUpdate));
+
+            if(!biomeUpdates.isEmpty()) {
+                updates.addAll(BiomeUpdate.merge(biomeUpdates));
+                priority.sort(updates, view);
+            }
+
+            return updates;
+        }, pool);
+    }
+
+    /**
+     * Serializes the chunk packets of all refreshed chunks on the worker pool.
+     * The updates are sorted by the given priority, as seen from the given view.
+     * <br><br>
+     * <b>The returned future is not completed on the main thread!</b>
+     *
+     * @param refreshes the chunks to resend
+     * @param batch the batch sharing the encoded chunk packets with the other players updated in the same tick
+     * @param priority the priority deciding the order of the updates
+     * @param view the view of the player the updates are sent to
+     * @return a future completing with an update for every chunk
+     */
+    public CompletableFuture<List<SectionUpdate>> refresh(List<ChunkRefresh> refreshes, RenderBatch batch, RenderPriority priority, RenderView view) {
+        return CompletableFuture.supplyAsync(() -> {
+            List<SectionUpdate> updates = refreshes.parallelStream()
+                    .map(refresh -> refresh(refresh, batch, view))
+                    .collect(Collectors.toCollection(ArrayList::new));
+
+            priority.sort(updates, view);
+            return updates;
+        }, pool);
+    }
+
+    private SectionUpdate refresh(ChunkRefresh refresh, RenderBatch batch, RenderView view) {
+        long chunkKey = ChunkUtil.getChunkKey(refresh.getChunkX(), refresh.getChunkZ());
+        WirePacket chunkPacket = batch.encodeChunk(refresh.getRenderWorld(), chunkKey, () -> encodeChunk(refresh.getRenderWorld(), refresh.getChunkX(), refresh.getChunkZ(), refresh.getData()));
+
+        // The chunk is prioritized by the section at the eye level of the player
+        int sectionY = Math.clamp((int) Math.floor(view.getEyeY()) >> 4, refresh.getMinSectionY(), refresh.getMinSectionY() + refresh.getSectionCount() - 1);
+        SectionPos sectionPos = SectionPos.of(refresh.getChunkX(), sectionY, refresh.getChunkZ());
+
+        return new ChunkUpdate(refresh.getWorld(), sectionPos, refresh.getSectionCount(), refresh.getRenderWorld(), null, chunkPacket);
+    }
+
+    /**
+     * Diffs a single snapshot on the calling thread.
+     * Every compared section results in an update, sections that turned out to be the same get an update without a packet.
+     * When the chunk packet is smaller than all section updates together, a single {@link ChunkUpdate} is returned instead.
+     *
+     * @param snapshot the snapshot to diff
+     * @return the updates of all compared sections of the chunk, or the update resending the whole chunk
+     */
+    public List<SectionUpdate> build(ChunkRenderSnapshot snapshot) {
+        List<SectionUpdate> updates = new ArrayList<>();
+
+        LevelChunkSection[] sections = snapshot.getSections();
+
+        for (int i = 0; i < sections.length; i++) {
+            if (!snapshot.getCompare()[i])
+                continue;
+
+            int sectionIndex = i;
+            SectionPos sectionPos = SectionPos.of(snapshot.getChunkX(), snapshot.getMinSectionY() + i, snapshot.getChunkZ());
+            long chunkKey = ChunkUtil.getChunkKey(snapshot.getChunkX(), snapshot.getChunkZ());
+
+            MultiBlockPacket packet = snapshot.getBatch().diff(snapshot.getRenderWorld(), snapshot.getPreviousWorlds()[i], chunkKey, i,
+                    () -> diff(snapshot, sectionIndex, sectionPos));
+
+            updates.add(new SectionUpdate(snapshot.getWorld(), sectionPos, i, sections.length, snapshot.getRenderWorld(), snapshot.getPreviousWorlds()[i], packet));
+        }
+
+        SectionUpdate lightUpdate = diffLight(snapshot, updates);
+
+        if(lightUpdate != null)
+            updates.add(lightUpdate);
+
+        // Merged with the biomes of the other chunks once all chunks are diffed
+        if(snapshot.getBiomes() != null) {
+            SectionPos biomePos = updates.isEmpty() ? SectionPos.of(snapshot.getChunkX(), snapshot.getMinSectionY(), snapshot.getChunkZ()) : updates.get(updates.size() / 2).getSectionPos();
+            updates.add(new BiomeUpdate(snapshot.getWorld(), biomePos, List.of(snapshot.getBiomes())));
+        }
+
+        return chooseCheapest(snapshot, updates);
+    }
+
+    /**
+     * Compares the light of all compared sections, and builds a light update for the sections whose light differs.
+     *
+     * @param snapshot the snapshot to diff
+     * @param updates the updates of the compared sections, from the bottom up
+     * @return the light update, or null when the light of all compared sections is the same
+     */
+    private @Nullable SectionUpdate diffLight(ChunkRenderSnapshot snapshot, List<SectionUpdate> updates) {
+        LightPacket lightPacket = new LightPacket(snapshot.getChunkX(), snapshot.getChunkZ());
+        SectionPos changedPos = null;
+
+        for(SectionUpdate update : updates) {
+            int i = update.getSectionIndex();
+            LightSection light = snapshot.getLight()[i];
+            LightSection previousLight = snapshot.getPreviousLight()[i];
+
+            if(light == null || previousLight == null)
+                continue;
+
+            // Light sections start one section below the lowest block section
+            int lightSectionIndex = i + 1;
+
+            if(light.isSkyLightDifferent(previousLight))
+                lightPacket.setSkyLight(lightSectionIndex, light.getSkyLight());
+
+            if(light.isBlockLightDifferent(previousLight))
+                lightPacket.setBlockLight(lightSectionIndex, light.getBlockLight());
+
+            if(changedPos == null && !lightPacket.isEmpty())
+                changedPos = update.getSectionPos();
+        }
+
+        if(changedPos == null)
+            return null;
+
+        return new LightUpdate(snapshot.getWorld(), changedPos, snapshot.getSections().length, snapshot.getRenderWorld(), snapshot.getPreviousWorlds(), lightPacket.encode());
+    }
+
+    /**
+     * Compares the size of the section updates with the size of the chunk packet, and returns the cheapest option.
+     */
+    private List<SectionUpdate> chooseCheapest(ChunkRenderSnapshot snapshot, List<SectionUpdate> updates) {
+        List<SectionUpdate> changed = updates.stream().filter(SectionUpdate::hasPacket).toList();
+
+        if(changed.isEmpty())
+            return updates;
+
+        int sectionBytes = changed.stream().mapToInt(SectionUpdate::getEstimatedSize).sum();
+        ChunkPacketData chunkData = snapshot.getChunkData();
+
+        // The chunk data is only encoded on the main thread while there is time left, without it the sections are always updated
+        if(chunkData == null || !costModel.isWorthMeasuring(sectionBytes)) {
+            costModel.recordChoice(false);
+            return updates;
+        }
+
+        long chunkKey = ChunkUtil.getChunkKey(snapshot.getChunkX(), snapshot.getChunkZ());
+        WirePacket chunkPacket = snapshot.getBatch().encodeChunk(snapshot.getRenderWorld(), chunkKey, () -> encodeChunk(snapshot.getRenderWorld(), snapshot.getChunkX(), snapshot.getChunkZ(), chunkData));
+
+        if(ChunkUpdate.getEncodedSize(chunkPacket) >= sectionBytes) {
+            costModel.recordChoice(false);
+            return updates;
+        }
+
+        costModel.recordChoice(true);
+
+        // The chunk is prioritized by the middle one of its changed sections
+        SectionPos sectionPos = changed.get(changed.size() / 2).getSectionPos();
+
+        return List.of(new ChunkUpdate(snapshot.getWorld(), sectionPos, snapshot.getSections().length, snapshot.getRenderWorld(), snapshot.getPreviousWorlds(), chunkPacket));
+    }
+
+    /**
+     * Serializes the chunk packet of the render world from the data encoded on the main thread, and records its size in the cost model.
+     *
+     * @return the serialized packet
+     */
+    private WirePacket encodeChunk(World renderWorld, int chunkX, int chunkZ, ChunkPacketData data) {
+        WirePacket wirePacket = WirePacket.fromPacket(new ChunkPacket(chunkX, chunkZ, renderWorld, data));
+        costModel.recordChunkSize(ChunkUpdate.getEncodedSize(wirePacket));
+
+        return wirePacket;
+    }
+
+    /**
+     * Diffs a single section, and encodes the resulting packet so it can be written to every player without being serialized again.
+     *
+     * @return the packet updating the section, or null when both sections are the same
+     */
+    private @Nullable MultiBlockPacket diff(ChunkRenderSnapshot snapshot, int sectionIndex, SectionPos sectionPos) {
+        LevelChunkSection[] sections = snapshot.getSections();
+        LevelChunkSection section = sections[sectionIndex];
+        LevelChunkSection previousSection = snapshot.getPreviousSections()[sectionIndex];
+
+        if (snapshot.getUnknownFingerprints()[sectionIndex] && isSameFingerprint(snapshot, sectionIndex, section, previousSection, sections.length, snapshot.getPreviousSectionCounts()[sectionIndex]))
+            return null;
+
+        ShortSet changedPositions = SectionDiff.getChangedPositions(section, previousSection);
+
+        if (changedPositions.isEmpty())
+            return null;
+
+        MultiBlockPacket packet = new MultiBlockPacket(sectionPos, changedPositions, section);
+        packet.getWirePacket();
+
+        return packet;
+    }
+
+    /**
+     * Computes the fingerprints of both sections, and stores them so the next switch can skip the section in O(1).
+     */
+    private boolean isSameFingerprint(ChunkRenderSnapshot snapshot, int sectionIndex, LevelChunkSection section, LevelChunkSection previousSection, int sectionCount, int previousSectionCount) {
+        if(previousSection == null)
+            return false;
+
+        long fingerprint = SectionFingerprintIndex.computeFingerprint(section);
+        long previousFingerprint = SectionFingerprintIndex.computeFingerprint(previousSection);
+
+        fingerprintIndex.putFingerprint(snapshot.getRenderWorld(), snapshot.getChunkX(), snapshot.getChunkZ(), sectionIndex, sectionCount, fingerprint, snapshot.getRenderWorldStamp());
+        fingerprintIndex.putFingerprint(snapshot.getPreviousWorlds()[sectionIndex], snapshot.getChunkX(), snapshot.getChunkZ(), sectionIndex, previousSectionCount, previousFingerprint, snapshot.getPreviousWorldStamps()[sectionIndex]);
+
+        return fingerprint == previousFingerprint;
+    }
+
+    /**
+     * Stops the worker threads, builds that are still running are abandoned.
+     */
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+}
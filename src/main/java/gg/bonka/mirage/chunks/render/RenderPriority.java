@@ -0,0 +1,45 @@
+package gg.bonka.mirage.chunks.render;
+
+import net.minecraft.core.SectionPos;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Decides in which order render updates are sent to a player, sections with a lower priority value are sent first.
+ * <br><br>
+ * Implementations can be called from any thread, and should only depend on the given view.
+ *
+ * @see gg.bonka.mirage.chunks.ChunkRenderingSystem#setRenderPriority(RenderPriority)
+ */
+@FunctionalInterface
+public interface RenderPriority {
+
+    /**
+     * @param view the view of the player the section is sent to
+     * @param sectionPos the position of the section
+     * @return the priority of the section, lower values are sent first
+     */
+    double getPriority(RenderView view, SectionPos sectionPos);
+
+    /**
+     * Sorts the updates in place by their priority, computing the priority of every update only once.
+     *
+     * @param updates the updates to sort
+     * @param view the view of the player the updates are sent to
+     */
+    default void sort(List<SectionUpdate> updates, RenderView view) {
+        record Prioritized(SectionUpdate update, double priority) {}
+
+        List<Prioritized> prioritized = new ArrayList<>(updates.size());
+
+        for(SectionUpdate update : updates)
+            prioritized.add(new Prioritized(update, getPriority(view, update.getSectionPos())));
+
+        prioritized.sort(Comparator.comparingDouble(Prioritized::priority));
+
+        for(int i = 0; i < prioritized.size(); i++)
+            updates.set(i, prioritized.get(i).update());
+    }
+}
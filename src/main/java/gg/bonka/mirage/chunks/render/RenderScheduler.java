@@ -0,0 +1,283 @@
+package gg.bonka.mirage.chunks.render;
+
+import gg.bonka.mirage.Mirage;
+import gg.bonka.mirage.chunks.events.FinishPlayerWorldRenderingReloadEvent;
+import gg.bonka.mirage.configuration.MirageConfig;
+import lombok.Getter;
+import lombok.Setter;
+import org.bukkit.entity.Player;
+import org.bukkit.scheduler.BukkitRunnable;
+
+import java.util.*;
+
+/**
+ * The single owner of all render packets that still have to be sent, for every player.
+ * <br><br>
+ * Every tick the scheduler sends at most the global byte budget, divided fairly over all players with pending work
+ * using deficit round-robin. Every player additionally never receives more than their own {@link RenderPacer} allows.
+ * When 80 players are re-rendered at once, they all progress at the same rate instead of flooding the server's uplink.
+ * <br><br>
+ * The client side state of a section is only updated once its update is actually sent,
+ * so an update that is replaced halfway through can be resumed from what the client really has.
+ */
+public class RenderScheduler extends BukkitRunnable {
+
+    // The share of the global budget that is used while the server is overloaded
+    private static final double THROTTLED_BUDGET_FACTOR = 0.25;
+
+    private final int globalMaxBytesPerTick;
+    private final RenderLoadMonitor loadMonitor;
+
+    private final Map<UUID, PlayerRenderQueue> queues = new LinkedHashMap<>();
+    private final Map<UUID, RenderPacer> pacers = new HashMap<>();
+
+    private int roundRobinOffset = 0;
+
+    @Getter
+    @Setter
+    private RenderPriority renderPriority = new ViewRenderPriority();
+
+    @Getter
+    private int bytesSentLastTick;
+
+    @Getter
+    private long totalBytesSent;
+
+    // The updates of a player are written in a bundle per tick, so the client applies them all in the same frame
+    @Getter
+    private long totalBundlesSent;
+
+    // Updates that were dropped because their chunk left the view, or the client state changed since they were diffed
+    @Getter
+    private long totalDroppedUpdates;
+
+    /**
+     * @param globalMaxBytesPerTick the maximum amount of bytes sent to all players together per tick
+     * @param loadMonitor the monitor that measures the time spent sending, and tells when the server is overloaded
+     */
+    public RenderScheduler(int globalMaxBytesPerTick, RenderLoadMonitor loadMonitor) {
+        this.globalMaxBytesPerTick = globalMaxBytesPerTick;
+        this.loadMonitor = loadMonitor;
+    }
+
+    /**
+     * Replaces the pending section updates of a player.
+     * The updates should be diffed against the current client side state, which already includes every update that was sent before.
+     *
+     * @param player the player to send the updates to
+     * @param updates the updates to send, sorted by the render priority
+     * @param view the view the updates were sorted for
+     * @param clientState the client side state of the player, updated whenever an update is sent
+     */
+    public void submit(Player player, List<SectionUpdate> updates, RenderView view, ClientSectionState clientState) {
+        PlayerRenderQueue queue = queues.computeIfAbsent(player.getUniqueId(), uuid -> new PlayerRenderQueue(player, getPacer(player)));
+        queue.setUpdates(updates, view, clientState);
+    }
+
+    /**
+     * Adds section updates to the pending updates of a player, without replacing the updates that are still pending.
+     * Unlike {@link #submit(Player, List, RenderView, ClientSectionState)} this doesn't start a render reload, so no finish event is called for them.
+     *
+     * @param player the player to send the updates to
+     * @param updates the updates to send
+     * @param clientState the client side state of the player, updated whenever an update is sent
+     */
+    public void enqueue(Player player, List<SectionUpdate> updates, ClientSectionState clientState) {
+        PlayerRenderQueue queue = queues.computeIfAbsent(player.getUniqueId(), uuid -> new PlayerRenderQueue(player, getPacer(player)));
+        queue.addUpdates(updates, renderPriority, RenderView.of(player), clientState);
+    }
+
+    /**
+     * Drops the pending section updates of a player without finishing the render reload,
+     * used when a new update is about to be diffed against the client side state.
+     * Updates that were already sent are part of that state, so nothing that was sent is lost.
+     * Retained updates like {@link MirrorUpdate}s aren't part of any diff, so those are kept.
+     *
+     * @param player the player to drop the pending updates of
+     */
+    public void discard(Player player) {
+        PlayerRenderQueue queue = queues.get(player.getUniqueId());
+
+        if(queue != null)
+            queue.discard();
+    }
+
+    /**
+     * Removes all pending work and the pacer of a player.
+     *
+     * @param player the player to remove
+     */
+    public void remove(Player player) {
+        queues.remove(player.getUniqueId());
+        pacers.remove(player.getUniqueId());
+    }
+
+    /**
+     * Gets the render pacer of the player, which decides how fast render updates are sent to them.
+     *
+     * @param player the player to get the pacer for
+     * @return the render pacer of the player
+     */
+    public RenderPacer getPacer(Player player) {
+        return pacers.computeIfAbsent(player.getUniqueId(), uuid -> {
+            MirageConfig config = Mirage.getInstance().getMirageConfig();
+            return new RenderPacer(config.getRenderMinBytesPerTick(), config.getRenderMaxBytesPerTick(), config.getRenderReferencePing());
+        });
+    }
+
+    /**
+     * @return the amount of players that still have render packets pending
+     */
+    public int getQueuedPlayers() {
+        return queues.size();
+    }
+
+    /**
+     * @return the amount of section updates pending for all players together
+     */
+    public int getPendingUpdates() {
+        return queues.values().stream().mapToInt(PlayerRenderQueue::size).sum();
+    }
+
+    @Override
+    public void run() {
+        long start = loadMonitor.startTiming();
+
+        try {
+            sendTick();
+        } finally {
+            loadMonitor.stopTiming(start);
+        }
+    }
+
+    private void sendTick() {
+        bytesSentLastTick = 0;
+
+        List<PlayerRenderQueue> active = collectActiveQueues();
+
+        if(active.isEmpty())
+            return;
+
+        for(PlayerRenderQueue queue : active) {
+            queue.prioritize(renderPriority);
+            queue.setTickBudget(queue.getPacer().nextTickBudget(queue.getPlayer()));
+            queue.setSentThisTick(0);
+        }
+
+        int globalBudget = loadMonitor.isThrottled() ? (int) (globalMaxBytesPerTick * THROTTLED_BUDGET_FACTOR) : globalMaxBytesPerTick;
+        int remaining = globalBudget;
+        int quantum = Math.max(1, globalBudget / active.size());
+        boolean progress = true;
+
+        // Rotate the starting player, so the same player doesn't always get the first turn
+        Collections.rotate(active, -(roundRobinOffset++ % active.size()));
+
+        while(remaining > 0 && progress) {
+            progress = false;
+
+            for(PlayerRenderQueue queue : active) {
+                int allowance = queue.getTickBudget() - queue.getSentThisTick();
+                totalDroppedUpdates += queue.dropInvalid();
+
+                if(queue.isEmpty() || allowance <= 0 || !fitsGlobalBudget(queue.peek().getEstimatedSize(), remaining, globalBudget))
+                    continue;
+
+                // The deficit never grows beyond what the pacer still allows this tick
+                int deficit = Math.min(queue.getDeficit() + Math.min(quantum, allowance), allowance);
+
+                if(deficit > queue.getDeficit())
+                    progress = true;
+
+                queue.setDeficit(deficit);
+
+                while(!queue.isEmpty() && canSend(queue, queue.peek().getEstimatedSize(), remaining, globalBudget)) {
+                    SectionUpdate update = queue.poll();
+                    progress = true;
+
+                    // Written as the already encoded bytes, the update already holds the blocks of the rendered world
+                    if(update.hasPacket())
+                        queue.getBundle().add(update.getWirePacket());
+
+                    queue.markSent(update);
+                    totalDroppedUpdates += queue.dropInvalid();
+
+                    int size = update.getEstimatedSize();
+                    queue.setDeficit(queue.getDeficit() - size);
+                    queue.setSentThisTick(queue.getSentThisTick() + size);
+                    remaining -= size;
+                }
+
+                if(remaining <= 0)
+                    break;
+            }
+        }
+
+        for(PlayerRenderQueue queue : active) {
+            totalBundlesSent += queue.getBundle().write(queue.getPlayer());
+            queue.getPacer().recordSent(queue.getSentThisTick());
+
+            // Unused deficit isn't carried over to the next tick, otherwise a player could burst far above their share
+            queue.setDeficit(queue.isEmpty() ? 0 : Math.min(queue.getDeficit(), quantum));
+            bytesSentLastTick += queue.getSentThisTick();
+        }
+
+        totalBytesSent += bytesSentLastTick;
+    }
+
+    /**
+     * An update that is larger than the whole tick budget of the player never fits the deficit,
+     * so it's sent on its own as the first update of a tick. The deficit it leaves is paid back in the next ticks.
+     */
+    private static boolean canSend(PlayerRenderQueue queue, int size, int remaining, int globalBudget) {
+        if(!fitsGlobalBudget(size, remaining, globalBudget))
+            return false;
+
+        return size <= queue.getDeficit() || (size > queue.getTickBudget() && queue.getSentThisTick() == 0);
+    }
+
+    /**
+     * An update that is larger than the whole global budget never fits what remains of it,
+     * so it's sent on its own as the first update of a tick, the same way as for the tick budget of a player.
+     */
+    private static boolean fitsGlobalBudget(int size, int remaining, int globalBudget) {
+        return size <= remaining || (size > globalBudget && remaining == globalBudget);
+    }
+
+    /**
+     * Removes queues of players that went offline or finished, and calls the finish event for the latter.
+     *
+     * @return the queues that still have pending work
+     */
+    private List<PlayerRenderQueue> collectActiveQueues() {
+        List<PlayerRenderQueue> active = new ArrayList<>();
+        List<Player> finished = new ArrayList<>();
+        Iterator<PlayerRenderQueue> iterator = queues.values().iterator();
+
+        while(iterator.hasNext()) {
+            PlayerRenderQueue queue = iterator.next();
+            Player player = queue.getPlayer();
+
+            if(!player.isOnline()) {
+                iterator.remove();
+                continue;
+            }
+
+            if(queue.isEmpty()) {
+                iterator.remove();
+
+                if(queue.isReloading())
+                    finished.add(player);
+
+                continue;
+            }
+
+            active.add(queue);
+        }
+
+        // Called after iterating, since listeners may submit new render work
+        for(Player player : finished)
+            new FinishPlayerWorldRenderingReloadEvent(player).callEvent();
+
+        return active;
+    }
+}
@@ -0,0 +1,54 @@
+package gg.bonka.mirage.chunks.render;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.bukkit.Location;
+import org.bukkit.entity.Player;
+import org.bukkit.util.Vector;
+
+/**
+ * An immutable copy of a player's eye position and view direction, so render work can be prioritized on any thread.
+ */
+@Getter
+@AllArgsConstructor
+public class RenderView {
+
+    private final double eyeX;
+    private final double eyeY;
+    private final double eyeZ;
+
+    // Normalized view direction
+    private final double directionX;
+    private final double directionY;
+    private final double directionZ;
+
+    /**
+     * Captures the current view of a player, must be called on the main thread.
+     *
+     * @param player the player to capture the view of
+     * @return the view of the player
+     */
+    public static RenderView of(Player player) {
+        Location eye = player.getEyeLocation();
+        Vector direction = eye.getDirection();
+
+        return new RenderView(eye.getX(), eye.getY(), eye.getZ(), direction.getX(), direction.getY(), direction.getZ());
+    }
+
+    /**
+     * Checks whether the view moved or turned enough that render work should be prioritized again.
+     *
+     * @param other the view to compare to
+     * @return true when the other view is in another chunk, section height or looks more than 30 degrees in another direction
+     */
+    public boolean differsFrom(RenderView other) {
+        if(((int) Math.floor(eyeX) >> 4) != ((int) Math.floor(other.eyeX) >> 4) || ((int) Math.floor(eyeZ) >> 4) != ((int) Math.floor(other.eyeZ) >> 4))
+            return true;
+
+        if(((int) Math.floor(eyeY) >> 4) != ((int) Math.floor(other.eyeY) >> 4))
+            return true;
+
+        // cos(30 degrees)
+        return directionX * other.directionX + directionY * other.directionY + directionZ * other.directionZ < 0.866;
+    }
+}
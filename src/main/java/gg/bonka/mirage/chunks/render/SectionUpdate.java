@@ -0,0 +1,81 @@
+package gg.bonka.mirage.chunks.render;
+
+import com.comphenix.protocol.injector.netty.WirePacket;
+import gg.bonka.mirage.chunks.ChunkUtil;
+import gg.bonka.mirage.chunks.packets.MultiBlockPacket;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import net.minecraft.core.SectionPos;
+import org.bukkit.World;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A single section that changes from the world the client has to the world that should be rendered.
+ * The update is only valid while the client still has the previous world in that section,
+ * which is checked right before the packet is sent.
+ */
+@Getter
+@AllArgsConstructor
+public class SectionUpdate {
+
+    // The real world the chunk is in
+    private final World world;
+
+    private final SectionPos sectionPos;
+    private final int sectionIndex;
+    private final int sectionCount;
+
+    private final World renderWorld;
+    private final World previousWorld;
+
+    // Null when both worlds turned out to be the same in this section, so only the client side state has to be updated
+    private final @Nullable MultiBlockPacket packet;
+
+    public long getChunkKey() {
+        return ChunkUtil.getChunkKey(sectionPos.x(), sectionPos.z());
+    }
+
+    public int getEstimatedSize() {
+        return packet == null ? 0 : packet.getEstimatedSize();
+    }
+
+    /**
+     * @return true if a packet has to be sent, false if only the client side state has to be updated
+     */
+    public boolean hasPacket() {
+        return packet != null;
+    }
+
+    /**
+     * @return the serialized packet to send, or null when nothing has to be sent
+     */
+    public @Nullable WirePacket getWirePacket() {
+        return packet == null ? null : packet.getWirePacket();
+    }
+
+    /**
+     * @return true if the update is kept when the pending updates of the player are replaced by a new render update
+     */
+    public boolean isRetained() {
+        return false;
+    }
+
+    /**
+     * Whether the update can still be applied, which is only the case when the client has the previous world of the update in that section.
+     *
+     * @param clientState the client side state of the player
+     * @return true if the update is still valid
+     */
+    public boolean isCurrent(ClientSectionState clientState) {
+        return clientState.getClientsideWorld(world, getChunkKey(), sectionIndex) == previousWorld;
+    }
+
+    /**
+     * Records that the update was applied on the client.
+     *
+     * @param clientState the client side state of the player
+     */
+    public void markApplied(ClientSectionState clientState) {
+        clientState.setClientsideWorld(world, getChunkKey(), sectionIndex, sectionCount, renderWorld);
+    }
+}
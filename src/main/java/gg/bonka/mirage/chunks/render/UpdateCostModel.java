@@ -0,0 +1,72 @@
+package gg.bonka.mirage.chunks.render;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Chooses between sending the section updates of a chunk and resending the whole chunk, whichever is smaller on the wire.
+ * <br><br>
+ * A full section update is never smaller than the sparse update of the same section, so the sparse updates are always compared to the chunk packet.
+ * The exact size of a chunk packet is only known after encoding it, so the model keeps an average of the measured chunk packet sizes
+ * and only encodes a chunk packet once the section updates of the chunk come close to that average.
+ * <br><br>
+ * This class is thread safe, it's used by all render workers at once.
+ */
+public class UpdateCostModel {
+
+    // Chunk packets vary in size, so chunks are measured from this share of the average chunk packet size
+    private static final double MEASURE_SHARE = 0.5;
+
+    // The weight of a new measurement in the average
+    private static final double AVERAGE_WEIGHT = 0.05;
+
+    private double averageChunkSize = 0;
+
+    private final LongAdder sectionUpdateChunks = new LongAdder();
+    private final LongAdder chunkUpdateChunks = new LongAdder();
+
+    /**
+     * @param sectionBytes the size of all section updates of a chunk together
+     * @return true if the chunk packet could be smaller, and should be encoded to compare the exact sizes
+     */
+    public synchronized boolean isWorthMeasuring(int sectionBytes) {
+        // Nothing is known before the first measurement
+        return averageChunkSize == 0 || sectionBytes >= averageChunkSize * MEASURE_SHARE;
+    }
+
+    /**
+     * @param chunkBytes the measured size of an encoded chunk packet
+     */
+    public synchronized void recordChunkSize(int chunkBytes) {
+        averageChunkSize = averageChunkSize == 0 ? chunkBytes : averageChunkSize + (chunkBytes - averageChunkSize) * AVERAGE_WEIGHT;
+    }
+
+    /**
+     * Records which kind of update was chosen for a changed chunk.
+     *
+     * @param chunkUpdate true if the whole chunk is resent, false if its sections are updated
+     */
+    public void recordChoice(boolean chunkUpdate) {
+        (chunkUpdate ? chunkUpdateChunks : sectionUpdateChunks).increment();
+    }
+
+    /**
+     * @return the average measured size of a chunk packet in bytes, 0 when nothing was measured yet
+     */
+    public synchronized double getAverageChunkSize() {
+        return averageChunkSize;
+    }
+
+    /**
+     * @return the amount of changed chunks that were updated section by section
+     */
+    public long getSectionUpdateChunks() {
+        return sectionUpdateChunks.sum();
+    }
+
+    /**
+     * @return the amount of changed chunks that were resent as a whole
+     */
+    public long getChunkUpdateChunks() {
+        return chunkUpdateChunks.sum();
+    }
+}
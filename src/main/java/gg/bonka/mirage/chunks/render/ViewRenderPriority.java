@@ -0,0 +1,47 @@
+package gg.bonka.mirage.chunks.render;
+
+import net.minecraft.core.SectionPos;
+
+/**
+ * The default render priority, combining the horizontal distance to the player with the vertical distance
+ * to the player's eye level and the angle between the section and the player's view direction.
+ * The result is measured in chunks, so sections in front of the player at eye level come first,
+ * and sections deep below or behind the player come last.
+ */
+public class ViewRenderPriority implements RenderPriority {
+
+    private final double verticalWeight;
+    private final double facingWeight;
+
+    /**
+     * Creates the priority with the default weights.
+     */
+    public ViewRenderPriority() {
+        this(1.5, 4);
+    }
+
+    /**
+     * @param verticalWeight the penalty in chunks per section of vertical distance from the eye level
+     * @param facingWeight the penalty in chunks for sections at a right angle to the view direction, doubled directly behind the player
+     */
+    public ViewRenderPriority(double verticalWeight, double facingWeight) {
+        this.verticalWeight = verticalWeight;
+        this.facingWeight = facingWeight;
+    }
+
+    @Override
+    public double getPriority(RenderView view, SectionPos sectionPos) {
+        double dx = sectionPos.minBlockX() + 8 - view.getEyeX();
+        double dy = sectionPos.minBlockY() + 8 - view.getEyeY();
+        double dz = sectionPos.minBlockZ() + 8 - view.getEyeZ();
+
+        double horizontal = Math.sqrt(dx * dx + dz * dz) / 16;
+        double vertical = Math.abs(dy) / 16;
+        double distance = Math.sqrt(dx * dx + dy * dy + dz * dz);
+
+        // The sections around the player are always visible, no matter where they look
+        double facing = distance < 16 ? 1 : (dx * view.getDirectionX() + dy * view.getDirectionY() + dz * view.getDirectionZ()) / distance;
+
+        return horizontal + vertical * verticalWeight + (1 - facing) * facingWeight;
+    }
+}
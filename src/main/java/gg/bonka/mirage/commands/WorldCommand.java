@@ -4,6 +4,14 @@ import co.aikar.commands.BaseCommand;
 import co.aikar.commands.annotation.*;
 import gg.bonka.mirage.Mirage;
 import gg.bonka.mirage.chunks.ChunkRenderingSystem;
+import gg.bonka.mirage.chunks.DeferredChunkSender;
+import gg.bonka.mirage.chunks.LayerCompositor;
+import gg.bonka.mirage.chunks.cache.ChunkPacketCache;
+import gg.bonka.mirage.chunks.cache.VisualizerChunkResidency;
+import gg.bonka.mirage.chunks.render.RenderLoadMonitor;
+import gg.bonka.mirage.chunks.render.RenderPacer;
+import gg.bonka.mirage.chunks.render.RenderScheduler;
+import gg.bonka.mirage.chunks.render.UpdateCostModel;
 import gg.bonka.mirage.filesystem.WorldsDirectoryManager;
 import gg.bonka.mirage.filesystem.eventhandlers.WorldInitHandler;
 import gg.bonka.mirage.misc.Chat;
@@ -256,6 +264,73 @@ public class WorldCommand extends BaseCommand {
         ChunkRenderingSystem.getInstance().updateChunks(receiver);
     }
 
+    @Subcommand("renderStats")
+    @CommandCompletion("@players")
+    @Description("Shows statistics of the chunk rendering system")
+    @CommandPermission("mirage.command.rendering")
+    public void renderStats(Player player, @Optional String targetName) {
+        ChunkPacketCache cache = ChunkRenderingSystem.getInstance().getChunkPacketCache();
+
+        player.sendMessage(Chat.format(String.format("Chunk packet cache: %d/%d chunks, %d hits, %d misses (%.1f%% hit rate), %d evictions",
+                cache.getSize(), cache.getMaxSize(), cache.getHits(), cache.getMisses(), cache.getHitRate() * 100, cache.getEvictions()), ChatColor.INFO));
+
+        RenderScheduler scheduler = ChunkRenderingSystem.getInstance().getRenderScheduler();
+
+        player.sendMessage(Chat.format(String.format("Render scheduler: %d players queued, %d updates pending, %d updates dropped, %d bytes sent last tick, %d bundles sent",
+                scheduler.getQueuedPlayers(), scheduler.getPendingUpdates(), scheduler.getTotalDroppedUpdates(), scheduler.getBytesSentLastTick(), scheduler.getTotalBundlesSent()), ChatColor.INFO));
+
+        UpdateCostModel costModel = ChunkRenderingSystem.getInstance().getRenderPipeline().getCostModel();
+
+        player.sendMessage(Chat.format(String.format("Changed chunks: %d updated by section, %d resent as a whole, %.1f KiB average chunk packet",
+                costModel.getSectionUpdateChunks(), costModel.getChunkUpdateChunks(), costModel.getAverageChunkSize() / 1024), ChatColor.INFO));
+
+        player.sendMessage(Chat.format(String.format("Visualizer edits: %d changed sections mirrored to players",
+                ChunkRenderingSystem.getInstance().getVisualizerChangeMirror().getTotalMirroredSections()), ChatColor.INFO));
+
+        LayerCompositor layerCompositor = ChunkRenderingSystem.getInstance().getLayerCompositor();
+
+        player.sendMessage(Chat.format(String.format("Composite worlds: %d worlds, %d chunks composited, %d blocks recomposited",
+                layerCompositor.getCompositeWorlds().size(), layerCompositor.getTotalCompositedChunks(), layerCompositor.getTotalRecompositedBlocks()), ChatColor.INFO));
+
+        DeferredChunkSender deferredChunkSender = ChunkRenderingSystem.getInstance().getDeferredChunkSender();
+
+        player.sendMessage(Chat.format(String.format("Visualizer chunk loading: %d chunks waiting, %d deferred, %d timed out, %d prefetched",
+                deferredChunkSender.getPendingCount(), deferredChunkSender.getDeferredSends(), deferredChunkSender.getTimedOutSends(),
+                ChunkRenderingSystem.getInstance().getChunkPrefetcher().getPrefetchedChunks()), ChatColor.INFO));
+
+        VisualizerChunkResidency residency = ChunkRenderingSystem.getInstance().getVisualizerChunkResidency();
+
+        for(World visualizer : residency.getResidentWorlds()) {
+            player.sendMessage(Chat.format(String.format("Visualizer %s: %d chunks resident, %d mirrored, %.1f%% hit rate",
+                    visualizer.getName(), residency.getResidentChunkCount(visualizer), residency.getMirroredChunkCount(visualizer), residency.getHitRate(visualizer) * 100), ChatColor.INFO));
+        }
+
+        RenderLoadMonitor loadMonitor = ChunkRenderingSystem.getInstance().getRenderLoadMonitor();
+
+        player.sendMessage(Chat.format(String.format("Render load: %.2f ms/tick on the main thread, server at %.1f mspt, throttled: %s, %d updates deferred (%d in total)",
+                loadMonitor.getAverageRenderMillis(), loadMonitor.getAverageMspt(), loadMonitor.isThrottled(),
+                ChunkRenderingSystem.getInstance().getDeferredUpdateCount(), loadMonitor.getTotalDeferredUpdates()), ChatColor.INFO));
+
+        if(targetName == null)
+            return;
+
+        Player target = Bukkit.getPlayer(targetName);
+
+        if(target == null) {
+            player.sendMessage(Chat.format(String.format("%s is not online!", targetName), ChatColor.ERROR));
+            return;
+        }
+
+        RenderPacer pacer = ChunkRenderingSystem.getInstance().getRenderPacer(target);
+
+        player.sendMessage(Chat.format(String.format("%s: %d bytes/tick budget, %d bytes sent last tick, %d bytes sent in total, %d ms ping",
+                target.getName(), pacer.getBytesPerTick(), pacer.getBytesSentLastTick(), pacer.getTotalBytesSent(), pacer.getPing()), ChatColor.INFO));
+
+        player.sendMessage(Chat.format(String.format("%s: %d client side chunks tracked, using about %.1f KiB",
+                target.getName(), ChunkRenderingSystem.getInstance().getTrackedChunkCount(target),
+                ChunkRenderingSystem.getInstance().getEstimatedMemoryUsage(target) / 1024.0), ChatColor.INFO));
+    }
+
     @Subcommand("settings")
     @CommandCompletion("@world")
     @Description("Opens the world settings GUI")
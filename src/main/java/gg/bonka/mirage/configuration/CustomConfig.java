@@ -32,15 +32,24 @@ public class CustomConfig {
         config = new YamlConfiguration();
 
         try {
-            if(!configFile.exists()) {
-                InputStream stream = Mirage.getInstance().getResource(fileName);
+            InputStream stream = Mirage.getInstance().getResource(fileName);
+
+            if(stream == null)
+                throw new RuntimeException(String.format("No resource found with name: %s", fileName));
 
-                if(stream == null)
-                    throw new RuntimeException(String.format("No resource found with name: %s", fileName));
+            String defaults = new String(stream.readAllBytes());
 
-                config.loadFromString(new String(stream.readAllBytes()));
+            if(!configFile.exists()) {
+                config.loadFromString(defaults);
             } else {
                 config.load(configFile);
+
+                //Keys added in newer versions of Mirage are taken from the default config, and written on the next save.
+                YamlConfiguration defaultConfig = new YamlConfiguration();
+                defaultConfig.loadFromString(defaults);
+
+                config.setDefaults(defaultConfig);
+                config.options().copyDefaults(true);
             }
         } catch (IOException | org.bukkit.configuration.InvalidConfigurationException e) {
             ConsoleLogger.error(String.format("Failed to load config file: %s error: %s", fileName, e));
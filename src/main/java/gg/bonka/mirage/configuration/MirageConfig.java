@@ -1,6 +1,7 @@
 package gg.bonka.mirage.configuration;
 
 import gg.bonka.mirage.Mirage;
+import gg.bonka.mirage.chunks.FullRefreshMode;
 import lombok.Getter;
 
 import java.io.IOException;
@@ -10,16 +11,76 @@ public class MirageConfig {
     @Getter
     private final boolean useRealtimeWorldLoading;
 
+    @Getter
+    private final FullRefreshMode fullRefreshMode;
+
     @Getter
     private final int maxRealtimeWorldLoadingRenderDistance;
 
+    @Getter
+    private final int chunkPacketCacheSize;
+
+    @Getter
+    private final int chunkPacketCacheMaxAge;
+
+    @Getter
+    private final int lightCacheSize;
+
+    @Getter
+    private final int renderWorkerThreads;
+
+    @Getter
+    private final int renderMinBytesPerTick;
+
+    @Getter
+    private final int renderMaxBytesPerTick;
+
+    @Getter
+    private final int renderReferencePing;
+
+    @Getter
+    private final int renderGlobalMaxBytesPerTick;
+
+    @Getter
+    private final double renderMsptThreshold;
+
+    @Getter
+    private final double renderMaxMainThreadMillisPerTick;
+
+    @Getter
+    private final int visualizerChunkLoadTimeout;
+
+    @Getter
+    private final int visualizerChunkRetainLimit;
+
+    @Getter
+    private final int prefetchLookaheadTicks;
+
+    @Getter
+    private final int prefetchChunksPerTick;
+
     @SuppressWarnings("ResultOfMethodCallIgnored")
     public MirageConfig() {
         Mirage.getInstance().getDataFolder().mkdirs();
         CustomConfig config = new CustomConfig(Mirage.getInstance().getDataFolder(), "Config.yml");
 
         useRealtimeWorldLoading = Boolean.parseBoolean(config.getStringKey("use-realtime-world-loading"));
+        fullRefreshMode = FullRefreshMode.fromConfig(config.getStringKey("full-refresh-mode"));
         maxRealtimeWorldLoadingRenderDistance = Integer.parseInt(config.getStringKey("max-realtime-world-loading-render-distance"));
+        chunkPacketCacheSize = Integer.parseInt(config.getStringKey("chunk-packet-cache-size"));
+        chunkPacketCacheMaxAge = Integer.parseInt(config.getStringKey("chunk-packet-cache-max-age"));
+        lightCacheSize = Integer.parseInt(config.getStringKey("light-cache-size"));
+        renderWorkerThreads = Integer.parseInt(config.getStringKey("render-worker-threads"));
+        renderMinBytesPerTick = Integer.parseInt(config.getStringKey("render-min-bytes-per-tick"));
+        renderMaxBytesPerTick = Integer.parseInt(config.getStringKey("render-max-bytes-per-tick"));
+        renderReferencePing = Integer.parseInt(config.getStringKey("render-reference-ping"));
+        renderGlobalMaxBytesPerTick = Integer.parseInt(config.getStringKey("render-global-max-bytes-per-tick"));
+        renderMsptThreshold = Double.parseDouble(config.getStringKey("render-mspt-threshold"));
+        renderMaxMainThreadMillisPerTick = Double.parseDouble(config.getStringKey("render-max-main-thread-ms-per-tick"));
+        visualizerChunkLoadTimeout = Integer.parseInt(config.getStringKey("visualizer-chunk-load-timeout"));
+        visualizerChunkRetainLimit = Integer.parseInt(config.getStringKey("visualizer-chunk-retain-limit"));
+        prefetchLookaheadTicks = Integer.parseInt(config.getStringKey("prefetch-lookahead-ticks"));
+        prefetchChunksPerTick = Integer.parseInt(config.getStringKey("prefetch-chunks-per-tick"));
 
         try {
             config.save();
@@ -1,6 +1,8 @@
 package gg.bonka.mirage.filesystem;
 
 import gg.bonka.mirage.Mirage;
+import gg.bonka.mirage.chunks.ChunkRenderingSystem;
+import gg.bonka.mirage.chunks.diff.SectionFingerprintIndex;
 import gg.bonka.mirage.filesystem.eventhandlers.WorldInitHandler;
 import gg.bonka.mirage.misc.Chat;
 import gg.bonka.mirage.misc.ChatColor;
@@ -150,6 +152,10 @@ public class WorldsDirectoryManager {
 
         world.save();
         worlds.add(world);
+
+        //Keeps the section fingerprints warm after a restart, persistent worlds change after saving so those are skipped.
+        if(!world.getPersistent() && ChunkRenderingSystem.getInstance() != null)
+            ChunkRenderingSystem.getInstance().getFingerprintIndex().save(world.getWorldName(), new File(world.getSaveDirectory(), SectionFingerprintIndex.FILE_NAME));
     }
 
     /**
@@ -257,7 +263,8 @@ public class WorldsDirectoryManager {
     }
 
     private boolean loadWorldToActiveDirectoryPredicate(Path path) {
-        return !path.getFileName().toString().endsWith(worldFileName);
+        String fileName = path.getFileName().toString();
+        return !fileName.endsWith(worldFileName) && !fileName.endsWith(SectionFingerprintIndex.FILE_NAME);
     }
 
     /**
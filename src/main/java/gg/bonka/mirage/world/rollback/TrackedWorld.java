@@ -1,5 +1,6 @@
 package gg.bonka.mirage.world.rollback;
 
+import gg.bonka.mirage.chunks.ChunkRenderingSystem;
 import gg.bonka.mirage.world.MirageWorld;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
@@ -79,6 +80,9 @@ public class TrackedWorld {
             int z = lightWeightLocation.z - worldLocation.getChunk().getZ() * 16;
 
             worldLocation.getBlock().setBlockData(chunks.get(worldLocation.getChunk().getChunkKey()).getBlockData(x, lightWeightLocation.y, z));
+
+            //Setting block data doesn't call any block events, so the rendering system has to be told about the change.
+            ChunkRenderingSystem.getInstance().getBlockChangeTracker().notifyChange(world, lightWeightLocation.x, lightWeightLocation.y, lightWeightLocation.z);
         }
 
         changedBlocks.clear();